@@ -41,12 +41,12 @@ public class FTPActivity extends Activity implements FTPAdapter.IAdapterCallback
 
     @Override
     public boolean userChangeDirectory(String path) {
-        return mController.changeDirectory(path);
+        return mController.batch().changeDirectory(path).list().currentDirectory().send();
     }
 
     @Override
     public boolean userChangeDirectoryUp() {
-        return mController.changeDirectoryUp();
+        return mController.batch().changeDirectoryUp().list().currentDirectory().send();
     }
 
     @Override
@@ -56,7 +56,7 @@ public class FTPActivity extends Activity implements FTPAdapter.IAdapterCallback
         mController.download(remoteFileName, localFileName);
     }
 
-    private class FTPCallback implements FTPController.IFTPCallback {
+    private class FTPCallback implements FTPController.IFTPCallback, FTPController.IFTPListPageCallback, FTPController.IFTPUploadCallback, FTPController.IFTPMirrorCallback {
         @Override
         public void start() {
             mControllerStarted = true;
@@ -83,8 +83,7 @@ public class FTPActivity extends Activity implements FTPAdapter.IAdapterCallback
         @Override
         public void login(int exception) {
             mServiceStatus.setText("login: " + exception);
-            mController.list();
-            mController.currentDirectory();
+            mController.batch().list().currentDirectory().send();
         }
 
         @Override
@@ -101,15 +100,11 @@ public class FTPActivity extends Activity implements FTPAdapter.IAdapterCallback
         @Override
         public void changeDirectory(int exception) {
             mServiceStatus.setText("changeDirectory: " + exception);
-            mController.list();
-            mController.currentDirectory();
         }
 
         @Override
         public void changeDirectoryUp(int exception) {
             mServiceStatus.setText("changeDirectoryUp: " + exception);
-            mController.list();
-            mController.currentDirectory();
         }
 
         @Override
@@ -133,18 +128,38 @@ public class FTPActivity extends Activity implements FTPAdapter.IAdapterCallback
             }
         }
 
+        @Override
+        public void listPage(int exception, FTPFile[] files, boolean last) {
+            mServiceStatus.setText("listPage: " + exception + ", " + files + ", " + last);
+            if (files != null) {
+                for (FTPFile file : files) {
+                    Log.d(TAG, "listPage: " + file.getName());
+                }
+            }
+        }
+
         @Override
         public void download(int exception) {
             mServiceStatus.setText("download: " + exception);
         }
 
+        @Override
+        public void upload(int exception) {
+            mServiceStatus.setText("upload: " + exception);
+        }
+
+        @Override
+        public void mirror(int exception, int files) {
+            mServiceStatus.setText("mirror: " + exception + ", " + files);
+        }
+
         @Override
         public void abortCurrentDataTransfer(int exception) {
             mServiceStatus.setText("abortCurrentDataTransfer: " + exception);
         }
     }
 
-    private class FTPDownload implements FTPController.IFTPDownload {
+    private class FTPDownload implements FTPController.IFTPDownload, FTPController.IFTPProgress {
         @Override
         public void started() {
             Toast.makeText(getApplicationContext(), "started", Toast.LENGTH_SHORT).show();
@@ -155,6 +170,11 @@ public class FTPActivity extends Activity implements FTPAdapter.IAdapterCallback
             Toast.makeText(getApplicationContext(), "transferred: " + length, Toast.LENGTH_SHORT).show();
         }
 
+        @Override
+        public void progress(long transferred, long total, long rate) {
+            mServiceStatus.setText("progress: " + transferred + "/" + total + ", " + rate + " B/s");
+        }
+
         @Override
         public void completed() {
             Toast.makeText(getApplicationContext(), "completed", Toast.LENGTH_SHORT).show();
@@ -8,13 +8,21 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(AndroidJUnit4.class)
 public class FTPControllerTest {
@@ -24,6 +32,8 @@ public class FTPControllerTest {
     private static final String TEST_HOST = "ftp.dlptest.com";
     private static final int TEST_PORT = 21;
     private static final String TEST_REPLY = "Welcome to the DLP Test FTP Server";
+    private static final String TEST_USERNAME = "dlpuser";
+    private static final String TEST_PASSWORD = "rNrKYTX9g7z3RgJRmxWuGHbeu";
 
     // Rebex FTP Test site (https://test.rebex.net/)
     private static final String TEST_ANONYMOUS_HOST = "test.rebex.net";
@@ -45,13 +55,15 @@ public class FTPControllerTest {
     private String mString;
     private String[] mStrings;
     private FTPFile[] mFiles;
+    private int mPageCount;
+    private int mFileCount;
     private boolean mDownloadStarted;
     private boolean mDownloadTransferred;
     private boolean mDownloadCompleted;
     private boolean mDownloadAborted;
     private boolean mDownloadFailed;
 
-    private class TestCallback implements FTPController.IFTPCallback {
+    private class TestCallback implements FTPController.IFTPCallback, FTPController.IFTPListPageCallback, FTPController.IFTPUploadCallback, FTPController.IFTPMirrorCallback {
         @Override
         public void start() {
             mMessageLatch.countDown();
@@ -120,12 +132,36 @@ public class FTPControllerTest {
             mMessageLatch.countDown();
         }
 
+        @Override
+        public void listPage(int exception, FTPFile[] files, boolean last) {
+            mException = exception;
+            if (files != null) {
+                mPageCount += files.length;
+            }
+            if (last) {
+                mMessageLatch.countDown();
+            }
+        }
+
         @Override
         public void download(int exception) {
             mException = exception;
             mMessageLatch.countDown();
         }
 
+        @Override
+        public void upload(int exception) {
+            mException = exception;
+            mMessageLatch.countDown();
+        }
+
+        @Override
+        public void mirror(int exception, int files) {
+            mException = exception;
+            mFileCount = files;
+            mMessageLatch.countDown();
+        }
+
         @Override
         public void abortCurrentDataTransfer(int exception) {
             mException = exception;
@@ -133,7 +169,7 @@ public class FTPControllerTest {
         }
     }
 
-    private class TestListener implements FTPController.IFTPDownload {
+    private class TestListener implements FTPController.IFTPDownload, FTPController.IFTPProgress {
         @Override
         public void started() {
             mDownloadStarted = true;
@@ -144,6 +180,11 @@ public class FTPControllerTest {
             mDownloadTransferred = true;
         }
 
+        @Override
+        public void progress(long transferred, long total, long rate) {
+            mDownloadTransferred = true;
+        }
+
         @Override
         public void completed() {
             mDownloadCompleted = true;
@@ -278,6 +319,15 @@ public class FTPControllerTest {
         return mFiles;
     }
 
+    private int listPaged(String fileSpec, int pageSize) {
+        mPageCount = 0;
+        mMessageLatch = new CountDownLatch(1);
+        assertTrue("listPaged", mController.listPaged(fileSpec, pageSize, true));
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        return mPageCount;
+    }
+
     private String[] listNames() {
         mStrings = null;
         mMessageLatch = new CountDownLatch(1);
@@ -304,6 +354,32 @@ public class FTPControllerTest {
         assertFalse("failed", mDownloadFailed);
     }
 
+    private void upload(String localFileName, String remoteFileName, boolean resume) {
+        mMessageLatch = new CountDownLatch(1);
+        mDownloadStarted = false;
+        mDownloadCompleted = false;
+        mDownloadAborted = false;
+        mDownloadFailed = false;
+        assertTrue("upload", mController.upload(localFileName, remoteFileName, resume));
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        assertTrue("started", mDownloadStarted);
+        assertTrue("completed", mDownloadCompleted);
+        assertFalse("aborted", mDownloadAborted);
+        assertFalse("failed", mDownloadFailed);
+    }
+
+    private int mirror(String remotePath, String localDir, boolean incremental) {
+        mMessageLatch = new CountDownLatch(1);
+        mFileCount = 0;
+        mDownloadCompleted = false;
+        assertTrue("mirror", mController.mirror(remotePath, localDir, incremental));
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        assertTrue("completed", mDownloadCompleted);
+        return mFileCount;
+    }
+
     private void abortCurrentDataTransfer() throws TimeoutException {
         mMessageLatch = new CountDownLatch(1);
         assertTrue("abortDownload", mController.abortCurrentDataTransfer());
@@ -377,6 +453,66 @@ public class FTPControllerTest {
         stop();
     }
 
+    @Test
+    public void testSessions() throws TimeoutException {
+        start();
+        connect(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT, TEST_ANONYMOUS_REPLY);
+        login();
+        changeDirectory(TEST_ANONYMOUS_FOLDER);
+
+        // Second session to same server, with its own working directory
+        mMessageLatch = new CountDownLatch(1);
+        int id = mController.connectSession(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT);
+        assertTrue("connectSession", id != FTPService.DEFAULT_SESSION && id >= 0);
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        FTPController session = mController.getSession(id);
+        assertNotNull("getSession", session);
+        mMessageLatch = new CountDownLatch(1);
+        assertTrue("login", session.login());
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        mString = null;
+        mMessageLatch = new CountDownLatch(1);
+        assertTrue("currentDirectory", session.currentDirectory());
+        await();
+        assertEquals("currentDirectory", mString, TEST_ROOT);
+
+        // Default session is left in its directory
+        String path = currentDirectory();
+        assertEquals("currentDirectory", path, TEST_ROOT + TEST_ANONYMOUS_FOLDER);
+
+        mMessageLatch = new CountDownLatch(1);
+        assertTrue("disconnect", session.disconnect());
+        await();
+        assertEquals("getSession", mController.getSession(id), null);
+
+        logout();
+        disconnect();
+        stop();
+    }
+
+    @Test
+    public void testBatch() throws TimeoutException {
+        start();
+        connect(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT, TEST_ANONYMOUS_REPLY);
+        login();
+
+        // Change directory, list and current directory in one request
+        mFiles = null;
+        mString = null;
+        mMessageLatch = new CountDownLatch(3);
+        assertTrue("batch", mController.batch().changeDirectory(TEST_ANONYMOUS_FOLDER).list().currentDirectory().send());
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        assertTrue("list", mFiles != null && mFiles.length > 0);
+        assertEquals("currentDirectory", mString, TEST_ROOT + TEST_ANONYMOUS_FOLDER);
+
+        logout();
+        disconnect();
+        stop();
+    }
+
     @Test
     public void testList() throws TimeoutException {
         start();
@@ -393,6 +529,60 @@ public class FTPControllerTest {
         // Default filespec
         list();
 
+        // Paged listing, one file per page
+        assertEquals("listPaged", files.length, listPaged(TEST_ROOT, 1));
+
+        logout();
+        disconnect();
+        stop();
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        start();
+        connect(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT, TEST_ANONYMOUS_REPLY);
+        login();
+
+        // Queued in order without waiting for results
+        Future<Void> cwd = mController.changeDirectoryAsync(TEST_ANONYMOUS_FOLDER);
+        Future<String> pwd = mController.currentDirectoryAsync();
+        Future<FTPFile[]> files = mController.listAsync();
+        Future<Void> cdup = mController.changeDirectoryUpAsync();
+        cwd.get(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals("currentDirectoryAsync", pwd.get(TEST_TIMEOUT, TimeUnit.MILLISECONDS), TEST_ROOT + TEST_ANONYMOUS_FOLDER);
+        assertTrue("listAsync", files.get(TEST_TIMEOUT, TimeUnit.MILLISECONDS).length > 0);
+        cdup.get(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals("currentDirectory", currentDirectory(), TEST_ROOT);
+
+        // Queued in order after command messages
+        mMessageLatch = new CountDownLatch(1);
+        assertTrue("changeDirectory", mController.changeDirectory(TEST_ANONYMOUS_FOLDER));
+        assertEquals("currentDirectoryAsync", mController.currentDirectoryAsync().get(TEST_TIMEOUT, TimeUnit.MILLISECONDS), TEST_ROOT + TEST_ANONYMOUS_FOLDER);
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        mController.changeDirectoryUpAsync().get(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        // Session is known once its connect message has been dispatched
+        mMessageLatch = new CountDownLatch(2);
+        int id = mController.connectSession(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT);
+        assertTrue("connectSession", id != FTPService.DEFAULT_SESSION && id >= 0);
+        FTPController session = mController.getSession(id);
+        assertTrue("login", session.login());
+        assertEquals("currentDirectoryAsync", session.currentDirectoryAsync().get(TEST_TIMEOUT, TimeUnit.MILLISECONDS), TEST_ROOT);
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        mMessageLatch = new CountDownLatch(1);
+        assertTrue("disconnect", session.disconnect());
+        await();
+
+        // Failed command
+        try {
+            mController.changeDirectoryAsync("nonexistent").get(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("changeDirectoryAsync");
+        } catch (ExecutionException e) {
+            assertEquals("changeDirectoryAsync", FTPService.whatException(e.getCause()), FTPService.EXCEPTION_FTP);
+        }
+
         logout();
         disconnect();
         stop();
@@ -435,10 +625,245 @@ public class FTPControllerTest {
         String localPath = InstrumentationRegistry.getInstrumentation().getTargetContext().getFilesDir().getAbsolutePath();
         String localFileName = localPath + "/" + TEST_REMOTE;
         download(TEST_REMOTE, localFileName);
+        FTPMetrics metrics = mController.getMetrics();
+        assertTrue("transfers", metrics.getTransfers() > 0);
+        assertTrue("bytes", metrics.getBytes() > 0);
         abortCurrentDataTransfer();
 
         logout();
         disconnect();
         stop();
     }
+
+    @Test
+    public void testChannelDownload() throws TimeoutException {
+        start();
+        connect(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT, TEST_ANONYMOUS_REPLY);
+        login();
+
+        // Download over raw channel, bypassing the download cache
+        assertTrue("setOption", mController.setOption(FTPService.OPTION_DOWNLOAD_CACHE_BYTES, 0));
+        assertTrue("setOption", mController.setOption(FTPService.OPTION_CHANNEL_DOWNLOADS, 1));
+        assertTrue("setOption", mController.setOption(FTPService.OPTION_RECEIVE_BUFFER, 256 * 1024));
+        changeDirectory(TEST_ANONYMOUS_FOLDER);
+        changeDirectory(TEST_ANONYMOUS_SUBFOLDER);
+
+        String localPath = InstrumentationRegistry.getInstrumentation().getTargetContext().getFilesDir().getAbsolutePath();
+        File localFile = new File(localPath, TEST_REMOTE);
+        download(TEST_REMOTE, localFile.getAbsolutePath());
+        assertTrue("length", localFile.length() > 0);
+        assertTrue("bytes", mController.getMetrics().getBytes() > 0);
+
+        logout();
+        disconnect();
+        stop();
+    }
+
+    @Test
+    public void testSessionDownload() throws InterruptedException {
+        start();
+        mMessageLatch = new CountDownLatch(1);
+        int id = mController.connectSession(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT);
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        FTPController session = mController.getSession(id);
+        assertNotNull("getSession", session);
+
+        // Download reply and updates go to the callbacks of the session it was started in
+        final CountDownLatch downloaded = new CountDownLatch(1);
+        final int[] result = {FTPService.EXCEPTION_UNKNOWN};
+        final boolean[] completed = {false};
+        session.setCallbacks(new TestCallback() {
+            @Override
+            public void download(int exception) {
+                result[0] = exception;
+                downloaded.countDown();
+            }
+        }, new TestListener() {
+            @Override
+            public void completed() {
+                completed[0] = true;
+            }
+        });
+        mMessageLatch = new CountDownLatch(1);
+        assertTrue("login", session.login());
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        mMessageLatch = new CountDownLatch(2);
+        assertTrue("changeDirectory", session.changeDirectory(TEST_ANONYMOUS_FOLDER));
+        assertTrue("changeDirectory", session.changeDirectory(TEST_ANONYMOUS_SUBFOLDER));
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+
+        String localPath = InstrumentationRegistry.getInstrumentation().getTargetContext().getFilesDir().getAbsolutePath();
+        File localFile = new File(localPath, TEST_REMOTE);
+        mDownloadCompleted = false;
+        assertTrue("download", session.download(TEST_REMOTE, localFile.getAbsolutePath()));
+        assertTrue("await", downloaded.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("exception", result[0], FTPService.EXCEPTION_OK);
+        assertTrue("completed", completed[0]);
+        assertFalse("default completed", mDownloadCompleted);
+
+        mMessageLatch = new CountDownLatch(1);
+        assertTrue("disconnect", session.disconnect());
+        await();
+        stop();
+    }
+
+    @Test
+    public void testDownloadDuplicates() throws TimeoutException {
+        start();
+        connect(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT, TEST_ANONYMOUS_REPLY);
+        login();
+        changeDirectory(TEST_ANONYMOUS_FOLDER);
+        changeDirectory(TEST_ANONYMOUS_SUBFOLDER);
+
+        // Requests for a queued or running file are collapsed into one transfer, one reply each
+        String localPath = InstrumentationRegistry.getInstrumentation().getTargetContext().getFilesDir().getAbsolutePath();
+        File localFile = new File(localPath, TEST_REMOTE);
+        long transfers = mController.getMetrics().getTransfers();
+        mMessageLatch = new CountDownLatch(3);
+        assertTrue("download", mController.download(TEST_REMOTE, localFile.getAbsolutePath()));
+        assertTrue("downloadWithPriority", mController.downloadWithPriority(TEST_REMOTE, localFile.getAbsolutePath(), FTPService.PRIORITY_HIGH));
+        assertTrue("downloadSegmented", mController.downloadSegmented(TEST_REMOTE, localFile.getAbsolutePath(), 2));
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        assertTrue("length", localFile.length() > 0);
+        assertEquals("transfers", transfers + 1, mController.getMetrics().getTransfers());
+
+        logout();
+        disconnect();
+        stop();
+    }
+
+    @Test
+    public void testDownloadCache() throws TimeoutException {
+        start();
+        connect(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT, TEST_ANONYMOUS_REPLY);
+        login();
+
+        // Listing gives size and modification date of cached files
+        assertTrue("setOption", mController.setOption(FTPService.OPTION_DOWNLOAD_CACHE_BYTES, 1024 * 1024));
+        changeDirectory(TEST_ANONYMOUS_FOLDER);
+        changeDirectory(TEST_ANONYMOUS_SUBFOLDER);
+        assertNotNull("list", list());
+
+        String localPath = InstrumentationRegistry.getInstrumentation().getTargetContext().getFilesDir().getAbsolutePath();
+        File localFile = new File(localPath, TEST_REMOTE);
+        download(TEST_REMOTE, localFile.getAbsolutePath());
+        long length = localFile.length();
+        long transfers = mController.getMetrics().getTransfers();
+        assertTrue("length", length > 0);
+
+        // Second download served from cache, without a transfer
+        assertTrue("delete", localFile.delete());
+        download(TEST_REMOTE, localFile.getAbsolutePath());
+        assertEquals("length", length, localFile.length());
+        assertEquals("transfers", transfers, mController.getMetrics().getTransfers());
+
+        assertTrue("setOption", mController.setOption(FTPService.OPTION_DOWNLOAD_CACHE_BYTES, 0));
+        logout();
+        disconnect();
+        stop();
+    }
+
+    @Test
+    public void testUpload() throws IOException {
+        start();
+        connect(TEST_HOST, TEST_PORT, TEST_REPLY);
+        login(TEST_USERNAME, TEST_PASSWORD);
+        mController.setCallbacks(mCallback, mDownload, mDownload);
+
+        String localPath = InstrumentationRegistry.getInstrumentation().getTargetContext().getFilesDir().getAbsolutePath();
+        File localFile = new File(localPath, "upload.txt");
+        FileOutputStream out = new FileOutputStream(localFile);
+        out.write(new byte[4096]);
+        out.close();
+        String remoteFileName = "ftplib-" + System.currentTimeMillis() + ".txt";
+        upload(localFile.getAbsolutePath(), remoteFileName, false);
+
+        // Resumed upload of a complete file is completed without a transfer
+        upload(localFile.getAbsolutePath(), remoteFileName, true);
+
+        boolean found = false;
+        for (FTPFile file : list()) {
+            if (remoteFileName.equals(file.getName())) {
+                assertEquals("size", localFile.length(), file.getSize());
+                found = true;
+            }
+        }
+        assertTrue("list", found);
+        assertTrue("delete", localFile.delete());
+
+        disconnect();
+        stop();
+    }
+
+    @Test
+    public void testDownloadStream() throws IOException {
+        start();
+        connect(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT, TEST_ANONYMOUS_REPLY);
+        login();
+        changeDirectory(TEST_ANONYMOUS_FOLDER);
+        changeDirectory(TEST_ANONYMOUS_SUBFOLDER);
+
+        mMessageLatch = new CountDownLatch(1);
+        InputStream stream = mController.downloadStream(TEST_REMOTE, 1024);
+        assertNotNull("stream", stream);
+        byte[] buffer = new byte[256];
+        long length = 0;
+        int count;
+        while ((count = stream.read(buffer)) >= 0) {
+            length += count;
+        }
+        stream.close();
+        await();
+        assertEquals("exception", mException, FTPService.EXCEPTION_OK);
+        assertTrue("length", length > 0);
+
+        logout();
+        disconnect();
+        stop();
+    }
+
+    @Test
+    public void testRemoteFile() throws IOException {
+        start();
+        connect(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT, TEST_ANONYMOUS_REPLY);
+        login();
+        changeDirectory(TEST_ANONYMOUS_FOLDER);
+        changeDirectory(TEST_ANONYMOUS_SUBFOLDER);
+
+        FTPRemoteFile file = mController.openRemoteFile(TEST_REMOTE);
+        long size = file.size();
+        assertTrue("size", size > 1);
+        byte[] tail = new byte[(int) size];
+        assertEquals("tail", size - 1, file.read(1, tail, 0, tail.length));
+        byte[] head = new byte[1];
+        assertEquals("head", 1, file.read(0, head, 0, 1));
+        assertEquals("eof", -1, file.read(size, head, 0, 1));
+        file.close();
+
+        logout();
+        disconnect();
+        stop();
+    }
+
+    @Test
+    public void testMirror() throws TimeoutException {
+        start();
+        connect(TEST_ANONYMOUS_HOST, TEST_ANONYMOUS_PORT, TEST_ANONYMOUS_REPLY);
+        login();
+
+        String localPath = InstrumentationRegistry.getInstrumentation().getTargetContext().getFilesDir().getAbsolutePath();
+        String localDir = localPath + "/" + TEST_ANONYMOUS_SUBFOLDER;
+        String remotePath = "/" + TEST_ANONYMOUS_FOLDER + "/" + TEST_ANONYMOUS_SUBFOLDER;
+        assertTrue("files", mirror(remotePath, localDir, false) > 0);
+        assertTrue("local", new File(localDir, TEST_REMOTE).exists());
+        assertEquals("unchanged", 0, mirror(remotePath, localDir, true));
+
+        logout();
+        disconnect();
+        stop();
+    }
 }
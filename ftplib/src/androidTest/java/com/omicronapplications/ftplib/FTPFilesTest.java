@@ -57,4 +57,45 @@ public class FTPFilesTest {
             assertEquals("type", mExpected[i].getType(), result[i].getType());
         }
     }
+
+    @Test
+    public void testEncoding() {
+        int count = 1000;
+        FTPFile[] expected = new FTPFile[count];
+        for (int i = 0; i < count; i++) {
+            expected[i] = new FTPFile();
+            expected[i].setName("TestName" + (i % 10));
+            expected[i].setLink(i % 2 == 0 ? null : "TestLink");
+            expected[i].setModifiedDate(new Date(1_600_000_000_000L - i * 1000L));
+            expected[i].setSize(i == 0 ? -1 : i * 1_000_000_007L);
+            expected[i].setType(i % 3);
+        }
+
+        FTPFiles created = FTPFiles.decode(new FTPFiles(expected).encode());
+        com.omicronapplications.ftplib.FTPFile[] result = created.getFiles();
+
+        assertEquals("length", expected.length, result.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("name", expected[i].getName(), result[i].getName());
+            assertEquals("link", expected[i].getLink(), result[i].getLink());
+            assertEquals("modifiedDate", expected[i].getModifiedDate(), result[i].getModifiedDate());
+            assertEquals("size", expected[i].getSize(), result[i].getSize());
+            assertEquals("type", expected[i].getType(), result[i].getType());
+        }
+    }
+
+    @Test
+    public void testFileList() {
+        FTPFileList list = new FTPFileList(new FTPFiles(mExpected));
+
+        assertEquals("size", mExpected.length, list.size());
+        for (int i = 0; i < mExpected.length; i++) {
+            assertEquals("name", mExpected[i].getName(), list.nameAt(i));
+            assertEquals("link", mExpected[i].getLink(), list.linkAt(i));
+            assertEquals("modifiedDate", mExpected[i].getModifiedDate().getTime(), list.modifiedMillisAt(i));
+            assertEquals("size", mExpected[i].getSize(), list.sizeAt(i));
+            assertEquals("type", mExpected[i].getType(), list.typeAt(i));
+            assertEquals("get", mExpected[i].getName(), list.get(i).getName());
+        }
+    }
 }
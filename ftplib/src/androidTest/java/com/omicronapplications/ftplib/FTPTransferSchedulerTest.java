@@ -0,0 +1,101 @@
+package com.omicronapplications.ftplib;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class FTPTransferSchedulerTest {
+    private static final String TEST_HOST = "host";
+
+    private LinkedList<Runnable> mExecuted;
+    private List<String> mOrder;
+    private FTPTransferScheduler mScheduler;
+
+    private class TestTask extends FTPTransferScheduler.Task {
+        private final String mName;
+
+        TestTask(String name, int priority) {
+            super(TEST_HOST, priority);
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+            mOrder.add(mName);
+        }
+
+        @Override
+        void cancel() {
+            mOrder.add("cancel " + mName);
+        }
+    }
+
+    @Before
+    public void setup() {
+        mExecuted = new LinkedList<>();
+        mOrder = new ArrayList<>();
+        // Tasks are run one at a time by the test, in the order handed to the executor
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mExecuted.add(runnable);
+            }
+        };
+        mScheduler = new FTPTransferScheduler(executor, 1, 1);
+    }
+
+    private void runAll() {
+        while (!mExecuted.isEmpty()) {
+            mExecuted.removeFirst().run();
+        }
+    }
+
+    @Test
+    public void testPriority() {
+        TestTask running = new TestTask("running", FTPService.PRIORITY_NORMAL);
+        assertEquals("submit", 1, mScheduler.submit(running));
+        mScheduler.submit(new TestTask("normal", FTPService.PRIORITY_NORMAL));
+        mScheduler.submit(new TestTask("high", FTPService.PRIORITY_HIGH));
+        TestTask promoted = new TestTask("promoted", FTPService.PRIORITY_NORMAL);
+        mScheduler.submit(promoted);
+        assertEquals("size", 3, mScheduler.size());
+
+        assertFalse("promote", mScheduler.promote(running, FTPService.PRIORITY_HIGH));
+        assertTrue("promote", mScheduler.promote(promoted, FTPService.PRIORITY_HIGH));
+        runAll();
+
+        assertEquals("size", 0, mScheduler.size());
+        assertEquals("order", 4, mOrder.size());
+        assertEquals("order", "running", mOrder.get(0));
+        assertEquals("order", "high", mOrder.get(1));
+        assertEquals("order", "promoted", mOrder.get(2));
+        assertEquals("order", "normal", mOrder.get(3));
+    }
+
+    @Test
+    public void testShutdown() {
+        mScheduler.submit(new TestTask("running", FTPService.PRIORITY_NORMAL));
+        mScheduler.submit(new TestTask("queued", FTPService.PRIORITY_NORMAL));
+        mScheduler.shutdown();
+        mScheduler.submit(new TestTask("stopped", FTPService.PRIORITY_NORMAL));
+        runAll();
+
+        assertEquals("size", 0, mScheduler.size());
+        assertEquals("order", 3, mOrder.size());
+        assertEquals("order", "cancel queued", mOrder.get(0));
+        assertEquals("order", "cancel stopped", mOrder.get(1));
+        assertEquals("order", "running", mOrder.get(2));
+    }
+}
@@ -0,0 +1,404 @@
+package com.omicronapplications.ftplib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import it.sauronsoftware.ftp4j.FTPAbortedException;
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+
+/**
+ * Minimal FTP control connection with passive mode data connections. Used where ftp4j does not
+ * give access to the data connection, such as streaming directory listings and downloads
+ * written straight from the socket channel into the file channel.
+ */
+class FTPChannel {
+    private static final int CONNECT_TIMEOUT = 10000; // ms
+    static final int READ_TIMEOUT = 30000; // ms
+    private static final int TRANSFER_CHUNK = 256 * 1024; // bytes
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private final FTPSessionPool.Login mLogin;
+    private Socket mSocket;
+    private BufferedReader mReader;
+    private Writer mWriter;
+    private String mWorkingDirectory;
+    private int mReceiveBufferSize;
+    private volatile SocketChannel mData;
+    private volatile Selector mSelector;
+    private volatile boolean mAborted;
+
+    /**
+     * Control connection reply
+     */
+    static final class Reply {
+        final int code;
+        final String[] messages;
+
+        Reply(int code, String[] messages) {
+            this.code = code;
+            this.messages = messages;
+        }
+
+        boolean isPreliminary() {
+            return code >= 100 && code < 200;
+        }
+
+        boolean isSuccess() {
+            return code >= 200 && code < 300;
+        }
+
+        String message() {
+            return messages.length > 0 ? messages[messages.length - 1] : "";
+        }
+    }
+
+    /**
+     * Receiver of lines read from a data connection
+     */
+    interface LineHandler {
+        void line(String line) throws IOException;
+    }
+
+    /**
+     * Receiver of lengths written from a data connection to a file channel
+     */
+    interface WriteHandler {
+        void written(long length) throws IOException;
+    }
+
+    FTPChannel(FTPSessionPool.Login login) {
+        mLogin = login;
+    }
+
+    FTPSessionPool.Login getLogin() {
+        return mLogin;
+    }
+
+    /**
+     * Set socket receive buffer of data connections, applied before connecting so that a window
+     * scale large enough for the buffer is negotiated
+     *
+     * @param size  Size in bytes, or 0 for system default
+     */
+    void setReceiveBufferSize(int size) {
+        mReceiveBufferSize = Math.max(0, size);
+    }
+
+    boolean isConnected() {
+        return mSocket != null && mSocket.isConnected() && !mSocket.isClosed();
+    }
+
+    /**
+     * Connect and log in
+     */
+    void open() throws IOException, FTPIllegalReplyException, FTPException {
+        close();
+        mSocket = FTPDnsCache.connect(mLogin.host, mLogin.port, CONNECT_TIMEOUT);
+        mSocket.setSoTimeout(READ_TIMEOUT);
+        mReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream(), CHARSET));
+        mWriter = new OutputStreamWriter(mSocket.getOutputStream(), CHARSET);
+        try {
+            expect(readReply(), 220);
+            Reply reply = command("USER " + mLogin.username);
+            if (reply.code == 331) {
+                reply = command("PASS " + mLogin.password);
+            }
+            expect(reply, 230);
+            expect(command("TYPE I"), 200);
+        } catch (IOException | FTPIllegalReplyException | FTPException e) {
+            close();
+            throw e;
+        }
+    }
+
+    void close() {
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        mSocket = null;
+        mReader = null;
+        mWriter = null;
+        mWorkingDirectory = null;
+    }
+
+    /**
+     * Change working directory, skipped if already in directory
+     *
+     * @param path  Absolute path
+     */
+    void changeDirectory(String path) throws IOException, FTPIllegalReplyException, FTPException {
+        if (path == null || path.equals(mWorkingDirectory)) {
+            return;
+        }
+        mWorkingDirectory = null;
+        expect(command("CWD " + path), 250);
+        mWorkingDirectory = path;
+    }
+
+    /**
+     * List directory, passing each line to handler as it is received
+     *
+     * @param fileSpec  Path, or <code>null</code> for working directory
+     * @param handler   Line handler
+     */
+    void list(String fileSpec, LineHandler handler) throws IOException, FTPIllegalReplyException, FTPException {
+        SocketChannel data = openPassive();
+        try {
+            Reply reply = command(fileSpec != null ? "LIST " + fileSpec : "LIST");
+            if (!reply.isPreliminary()) {
+                throw new FTPException(reply.code, reply.message());
+            }
+            // Socket stream rather than channel stream, so that SO_TIMEOUT applies
+            data.socket().setSoTimeout(READ_TIMEOUT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(data.socket().getInputStream(), CHARSET));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                handler.line(line);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            data.close();
+        }
+        expect(readReply(), 226, 250);
+    }
+
+    /**
+     * Download file from offset, transferring from the data connection directly into the file
+     * channel without passing through stream buffers
+     *
+     * @param path       File name, relative to working directory
+     * @param file       File channel, at least restartAt bytes long
+     * @param restartAt  Offset to start download from
+     * @param handler    Write handler, or <code>null</code>
+     * @param listener   Transfer listener, or <code>null</code>
+     * @return           Number of bytes received
+     */
+    long retrieve(String path, FileChannel file, long restartAt, WriteHandler handler, FTPDataTransferListener listener) throws IOException, FTPIllegalReplyException, FTPException, FTPAbortedException {
+        mAborted = false;
+        SocketChannel data = openPassive();
+        long position = restartAt;
+        try {
+            if (restartAt > 0) {
+                expect(command("REST " + restartAt), 350);
+            }
+            Reply reply = command("RETR " + path);
+            if (!reply.isPreliminary()) {
+                throw new FTPException(reply.code, reply.message());
+            }
+            if (listener != null) {
+                listener.started();
+            }
+            // SO_TIMEOUT does not apply to channel reads, wait for data through a selector instead
+            data.configureBlocking(false);
+            Selector selector = Selector.open();
+            try {
+                data.register(selector, SelectionKey.OP_READ);
+                mSelector = selector;
+                mData = data;
+                ByteBuffer probe = ByteBuffer.allocate(1);
+                while (true) {
+                    if (selector.select(READ_TIMEOUT) == 0) {
+                        throw mAborted ? new IOException("Aborted") : new SocketTimeoutException("Data connection timed out");
+                    }
+                    selector.selectedKeys().clear();
+                    long count = file.transferFrom(data, position, TRANSFER_CHUNK);
+                    if (count == 0) {
+                        // Readable without data is either end of stream or a spurious wakeup
+                        probe.clear();
+                        int read = data.read(probe);
+                        if (read < 0) {
+                            break;
+                        } else if (read == 0) {
+                            continue;
+                        }
+                        probe.flip();
+                        count = file.write(probe, position);
+                    }
+                    position += count;
+                    if (handler != null) {
+                        handler.written(count);
+                    }
+                    if (listener != null) {
+                        listener.transferred((int) count);
+                    }
+                }
+            } finally {
+                mSelector = null;
+                selector.close();
+            }
+        } catch (IOException e) {
+            close();
+            if (mAborted) {
+                if (listener != null) {
+                    listener.aborted();
+                }
+                throw new FTPAbortedException();
+            }
+            if (listener != null) {
+                listener.failed();
+            }
+            throw e;
+        } finally {
+            mData = null;
+            data.close();
+        }
+        Reply reply = readReply();
+        if (reply.code != 226 && reply.code != 250) {
+            if (listener != null) {
+                listener.failed();
+            }
+            throw new FTPException(reply.code, reply.message());
+        }
+        if (listener != null) {
+            listener.completed();
+        }
+        return position - restartAt;
+    }
+
+    /**
+     * File size, in binary mode
+     */
+    long fileSize(String path) throws IOException, FTPIllegalReplyException, FTPException {
+        Reply reply = command("SIZE " + path);
+        expect(reply, 213);
+        try {
+            return Long.parseLong(reply.message().trim());
+        } catch (NumberFormatException e) {
+            throw new FTPIllegalReplyException();
+        }
+    }
+
+    /**
+     * Abort running download, by closing its data connection
+     */
+    void abort() {
+        SocketChannel data = mData;
+        if (data == null) {
+            return;
+        }
+        mAborted = true;
+        try {
+            data.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Send command and read reply
+     */
+    Reply command(String command) throws IOException, FTPIllegalReplyException {
+        if (mWriter == null) {
+            throw new IllegalStateException("Client not connected");
+        }
+        mWriter.write(command);
+        mWriter.write("\r\n");
+        mWriter.flush();
+        return readReply();
+    }
+
+    Reply readReply() throws IOException, FTPIllegalReplyException {
+        List<String> messages = new ArrayList<>();
+        String line = readLine();
+        int code = parseCode(line);
+        messages.add(line.substring(Math.min(4, line.length())));
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            String end = line.substring(0, 3) + " ";
+            do {
+                line = readLine();
+                messages.add(line.startsWith(end) ? line.substring(4) : line);
+            } while (!line.startsWith(end));
+        }
+        return new Reply(code, messages.toArray(new String[0]));
+    }
+
+    /**
+     * Enter passive mode and connect data connection
+     */
+    SocketChannel openPassive() throws IOException, FTPIllegalReplyException, FTPException {
+        Reply reply = command("PASV");
+        expect(reply, 227);
+        String message = reply.message();
+        int start = message.indexOf('(');
+        int end = message.indexOf(')', start + 1);
+        if (start < 0 || end < 0) {
+            throw new FTPIllegalReplyException();
+        }
+        String[] fields = message.substring(start + 1, end).split(",");
+        if (fields.length != 6) {
+            throw new FTPIllegalReplyException();
+        }
+        int port;
+        try {
+            port = (Integer.parseInt(fields[4].trim()) << 8) | Integer.parseInt(fields[5].trim());
+        } catch (NumberFormatException e) {
+            throw new FTPIllegalReplyException();
+        }
+        // Reported address is often unroutable behind NAT, use the control connection address
+        SocketChannel channel = SocketChannel.open();
+        try {
+            if (mReceiveBufferSize > 0) {
+                channel.socket().setReceiveBufferSize(mReceiveBufferSize);
+            }
+            channel.socket().connect(new InetSocketAddress(mSocket.getInetAddress(), port), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    static void expect(Reply reply, int... codes) throws FTPException {
+        for (int code : codes) {
+            if (reply.code == code) {
+                return;
+            }
+        }
+        throw new FTPException(reply.code, reply.message());
+    }
+
+    private String readLine() throws IOException, FTPIllegalReplyException {
+        String line = mReader.readLine();
+        if (line == null) {
+            close();
+            throw new IOException("FTPConnection closed");
+        }
+        return line;
+    }
+
+    private static int parseCode(String line) throws FTPIllegalReplyException {
+        if (line.length() < 3) {
+            throw new FTPIllegalReplyException();
+        }
+        try {
+            return Integer.parseInt(line.substring(0, 3));
+        } catch (NumberFormatException e) {
+            throw new FTPIllegalReplyException();
+        }
+    }
+}
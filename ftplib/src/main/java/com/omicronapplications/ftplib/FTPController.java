@@ -4,15 +4,23 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Future;
 
 /**
  * FTPController provides a way of running an FTP Client in a separate thread.
@@ -23,11 +31,19 @@ public class FTPController {
     private final Context mContext;
     private IFTPCallback mCallback;
     private IFTPDownload mDownload;
+    private IFTPDownload mUpload;
     private FTPConnection mConnection;
     private Messenger mLocalMessenger;
     private Messenger mRemoteMessenger;
     private Handler mRemoteHandler;
+    private FTPService.PlayerBinder mBinder;
     private FTPState mState;
+    private FTPServerProfile[] mProfiles;
+    // Controller of the default session, or null for the default session itself
+    private final FTPController mParent;
+    private final int mSession;
+    private final HashMap<Integer, FTPController> mSessions = new HashMap<>();
+    private int mNextSession = FTPService.DEFAULT_SESSION + 1;
 
     public enum FTPState {
         SERVICE_STOPPED, SERVICE_STARTED, FTP_CONNECTED, FTP_LOGGED_IN
@@ -52,6 +68,37 @@ public class FTPController {
         void abortCurrentDataTransfer(int exception);
     }
 
+    /**
+     * Optional FTPController listing callback interface. If the IFTPCallback instance also
+     * implements this interface, listings are delivered as FTPFileList instead of FTPFile[].
+     */
+    public interface IFTPFileListCallback {
+        void fileList(int exception, FTPFileList files);
+        void fileListPage(int exception, FTPFileList files, boolean last);
+    }
+
+    /**
+     * Optional FTPController paged listing callback interface, implemented by the IFTPCallback
+     * instance to receive pages as FTPFile[]
+     */
+    public interface IFTPListPageCallback {
+        void listPage(int exception, FTPFile[] files, boolean last);
+    }
+
+    /**
+     * Optional FTPController upload callback interface, implemented by the IFTPCallback instance
+     */
+    public interface IFTPUploadCallback {
+        void upload(int exception);
+    }
+
+    /**
+     * Optional FTPController mirror callback interface, implemented by the IFTPCallback instance
+     */
+    public interface IFTPMirrorCallback {
+        void mirror(int exception, int files);
+    }
+
     /**
      * FTPController download callback interface
      */
@@ -64,6 +111,14 @@ public class FTPController {
         void queue(int size);
     }
 
+    /**
+     * Optional FTPController progress interface. If the IFTPDownload instance also implements
+     * this interface, it receives transfer progress with total size and rate.
+     */
+    public interface IFTPProgress {
+        void progress(long transferred, long total, long rate);
+    }
+
     /*
      * FTPController public interface
      *
@@ -72,6 +127,81 @@ public class FTPController {
     public FTPController(Context context) {
         mContext = context;
         mState = FTPState.SERVICE_STOPPED;
+        mParent = null;
+        mSession = FTPService.DEFAULT_SESSION;
+    }
+
+    // Session controller, sharing the service connection of the default session controller
+    private FTPController(FTPController parent, int session) {
+        mContext = parent.mContext;
+        mState = parent.mState;
+        mParent = parent;
+        mSession = session;
+        mCallback = parent.mCallback;
+        mDownload = parent.mDownload;
+        mUpload = parent.mUpload;
+    }
+
+    /**
+     * Open a named session, with its own connection to an FTP server, running independently
+     * of the default session and other sessions. Commands sent through the returned controller
+     * run in the session, and their callbacks go to the callbacks set on it, which are initially
+     * those of this controller. This includes the updates and replies of downloads, uploads and
+     * mirrors started in the session. The session is closed on disconnect.
+     *
+     * @return  Session controller
+     * @see     #getSessionId()
+     */
+    public FTPController openSession() {
+        if (mParent != null) {
+            return mParent.openSession();
+        }
+        FTPController session = new FTPController(this, mNextSession++);
+        mSessions.put(session.mSession, session);
+        return session;
+    }
+
+    /**
+     * Open a named session and connect it to an FTP server
+     *
+     * @param host  Host address
+     * @param port  Host port, or -1 for default port
+     * @return      Session id, -1 if the connect request failed
+     * @see         #getSession(int)
+     * @see         IFTPCallback#connect(int, String[])
+     */
+    public int connectSession(String host, int port) {
+        FTPController session = openSession();
+        boolean connect = port < 0 ? session.connect(host) : session.connect(host, port);
+        if (!connect) {
+            root().mSessions.remove(session.mSession);
+            return -1;
+        }
+        return session.mSession;
+    }
+
+    /**
+     * Get controller of an open session
+     *
+     * @param session  Session id
+     * @return         Session controller, <code>null</code> if the session is not open
+     */
+    public FTPController getSession(int session) {
+        FTPController root = root();
+        return session == FTPService.DEFAULT_SESSION ? root : root.mSessions.get(session);
+    }
+
+    /**
+     * Get session id, also used to tell sessions apart in shared callbacks
+     *
+     * @return  Session id, <code>FTPService.DEFAULT_SESSION</code> for the default session
+     */
+    public int getSessionId() {
+        return mSession;
+    }
+
+    private FTPController root() {
+        return mParent != null ? mParent : this;
     }
 
     /*
@@ -85,6 +215,36 @@ public class FTPController {
         mDownload = download;
     }
 
+    /*
+     * Set callbacks
+     *
+     * @param callback  Instance of FTPCallback implementation
+     * @param download  Instance of FTPDownload implementation
+     * @param upload    Instance of FTPDownload implementation, receiving upload updates
+     */
+    public void setCallbacks(IFTPCallback callback, IFTPDownload download, IFTPDownload upload) {
+        setCallbacks(callback, download);
+        mUpload = upload;
+    }
+
+    /**
+     * Set known servers. When the service starts, it resolves their addresses and opens a
+     * logged-in session to each in the background, which is used by the first connect and
+     * login matching its host, port, user name and password.
+     *
+     * @param profiles  Known servers, e.g. recently used servers
+     */
+    public void setProfiles(FTPServerProfile... profiles) {
+        if (mParent != null) {
+            mParent.setProfiles(profiles);
+            return;
+        }
+        mProfiles = profiles != null ? profiles.clone() : null;
+        if (mState != FTPState.SERVICE_STOPPED && mProfiles != null) {
+            sendCommand(FTPService.WHAT_PROFILES, 0, 0, new Bundle(), mProfiles);
+        }
+    }
+
     /**
      * Start FTP service
      *
@@ -93,6 +253,10 @@ public class FTPController {
      * @see     IFTPCallback#start()
      */
     public boolean start() {
+        if (mParent != null) {
+            Log.e(TAG, "start: session started with default session");
+            return false;
+        }
         if (mContext == null || mCallback == null) {
             Log.e(TAG, "start: Failed to set up ServiceConnection");
             return false;
@@ -112,7 +276,7 @@ public class FTPController {
      * @see  IFTPCallback#stop()
      */
     public void stop() {
-        if (mContext == null || mConnection == null) {
+        if (mParent != null || mContext == null || mConnection == null) {
             return;
         }
         mContext.unbindService(mConnection);
@@ -256,6 +420,19 @@ public class FTPController {
         return sendCommand(FTPService.WHAT_LIST, FTPService.KEY_FILESPEC, fileSpec);
     }
 
+    /**
+     * List files
+     *
+     * @param fileSpec      Path
+     * @param forceRefresh  <code>true</code> to bypass the listing cache
+     * @return              <code>true</code> if the list directory request succeeded
+     *                      <code>false</code> otherwise
+     * @see                 IFTPCallback#list(int, FTPFile[])
+     */
+    public boolean list(String fileSpec, boolean forceRefresh) {
+        return sendCommand(FTPService.WHAT_LIST, forceRefresh ? 1 : 0, FTPService.KEY_FILESPEC, fileSpec);
+    }
+
     /**
      * List files
      *
@@ -267,6 +444,20 @@ public class FTPController {
         return sendCommand(FTPService.WHAT_LIST);
     }
 
+    /**
+     * List files in pages, streamed as the listing is received
+     *
+     * @param fileSpec      Path, or <code>null</code> for current directory
+     * @param pageSize      Number of files per page, or <code>0</code> for default page size
+     * @param forceRefresh  <code>true</code> to bypass the listing cache
+     * @return              <code>true</code> if the list directory request succeeded
+     *                      <code>false</code> otherwise
+     * @see                 IFTPListPageCallback#listPage(int, FTPFile[], boolean)
+     */
+    public boolean listPaged(String fileSpec, int pageSize, boolean forceRefresh) {
+        return sendCommand(FTPService.WHAT_LIST_PAGED, pageSize, forceRefresh ? 1 : 0, FTPService.KEY_FILESPEC, fileSpec);
+    }
+
     /**
      * List names
      *
@@ -279,7 +470,8 @@ public class FTPController {
     }
 
     /**
-     * Download file
+     * Download file. A previously interrupted download of the same file is resumed from the
+     * length last verified on disk.
      *
      * @param remoteFileName  FTP server file name
      * @param localFileName   Local file name including path
@@ -302,11 +494,208 @@ public class FTPController {
      * @see                   IFTPCallback#download(int)
      */
     public boolean download(String remoteFileName, String localFileName, long restartAt) {
-        if (restartAt > 2_147_483_647) {
+        if (restartAt < 0) {
             Log.e(TAG, "download: unable to resume at " + restartAt);
             return false;
         }
-        return sendCommand(FTPService.WHAT_DOWNLOAD, (int) restartAt, FTPService.KEY_REMOTE_FILE_NAME, remoteFileName, FTPService.KEY_LOCAL_FILE_NAME, localFileName);
+        Bundle data = makeData(FTPService.KEY_REMOTE_FILE_NAME, remoteFileName, FTPService.KEY_LOCAL_FILE_NAME, localFileName);
+        data.putLong(FTPService.KEY_RESTART_AT, restartAt);
+        return sendCommand(FTPService.WHAT_DOWNLOAD, 0, 0, data);
+    }
+
+    /**
+     * Download file with priority. If the same file is already queued or being downloaded to
+     * the same local file, no new download is started, the queued download is raised to the
+     * given priority and the callback is called for both requests once it is done.
+     *
+     * @param remoteFileName  FTP server file name
+     * @param localFileName   Local file name including path
+     * @param priority        Download priority, e.g. FTPService.PRIORITY_HIGH for a file the
+     *                        user is waiting for
+     * @return                <code>true</code> if the download request succeeded
+     *                        <code>false</code> otherwise
+     * @see                   IFTPCallback#download(int)
+     */
+    public boolean downloadWithPriority(String remoteFileName, String localFileName, int priority) {
+        Bundle data = makeData(FTPService.KEY_REMOTE_FILE_NAME, remoteFileName, FTPService.KEY_LOCAL_FILE_NAME, localFileName);
+        data.putInt(FTPService.KEY_PRIORITY, priority);
+        return sendCommand(FTPService.WHAT_DOWNLOAD, 0, 0, data);
+    }
+
+    /**
+     * Download file over several parallel connections
+     *
+     * @param remoteFileName  FTP server file name
+     * @param localFileName   Local file name including path
+     * @param segments        Number of file segments to download in parallel, limited to the
+     *                        maximum number of connections per host
+     * @return                <code>true</code> if the download request succeeded
+     *                        <code>false</code> otherwise
+     * @see                   IFTPCallback#download(int)
+     */
+    public boolean downloadSegmented(String remoteFileName, String localFileName, int segments) {
+        if (segments < 1) {
+            Log.e(TAG, "downloadSegmented: invalid segment count: " + segments);
+            return false;
+        }
+        return sendCommand(FTPService.WHAT_DOWNLOAD, 0, segments, FTPService.KEY_REMOTE_FILE_NAME, remoteFileName, FTPService.KEY_LOCAL_FILE_NAME, localFileName);
+    }
+
+    /**
+     * Upload file
+     *
+     * @param localFileName   Local file name including path
+     * @param remoteFileName  FTP server file name
+     * @return                <code>true</code> if the upload request succeeded
+     *                        <code>false</code> otherwise
+     * @see                   IFTPUploadCallback#upload(int)
+     */
+    public boolean upload(String localFileName, String remoteFileName) {
+        return upload(localFileName, remoteFileName, false);
+    }
+
+    /**
+     * Upload file
+     *
+     * @param localFileName   Local file name including path
+     * @param remoteFileName  FTP server file name
+     * @param resume          <code>true</code> to continue a partial upload from the size of the
+     *                        remote file, with REST or APPE
+     * @return                <code>true</code> if the upload request succeeded
+     *                        <code>false</code> otherwise
+     * @see                   IFTPUploadCallback#upload(int)
+     */
+    public boolean upload(String localFileName, String remoteFileName, boolean resume) {
+        return sendCommand(FTPService.WHAT_UPLOAD, resume ? 1 : 0, FTPService.KEY_LOCAL_FILE_NAME, localFileName, FTPService.KEY_REMOTE_FILE_NAME, remoteFileName);
+    }
+
+    /**
+     * Upload stream. The stream is read on a transfer thread, and closed once the upload is done.
+     *
+     * @param stream          Input stream
+     * @param remoteFileName  FTP server file name
+     * @param resume          <code>true</code> to continue a partial upload from the size of the
+     *                        remote file, skipping as much of the stream
+     * @return                <code>true</code> if the upload request succeeded
+     *                        <code>false</code> otherwise
+     * @see                   IFTPUploadCallback#upload(int)
+     */
+    public boolean upload(InputStream stream, String remoteFileName, boolean resume) {
+        if (stream == null) {
+            Log.e(TAG, "upload: no stream");
+            return false;
+        }
+        return sendCommand(FTPService.WHAT_UPLOAD, resume ? 1 : 0, 0, makeData(FTPService.KEY_REMOTE_FILE_NAME, remoteFileName), stream);
+    }
+
+    /**
+     * Upload file descriptor, such as a document opened through ContentResolver. The file
+     * descriptor is closed once the upload is done.
+     *
+     * @param fd              File descriptor
+     * @param remoteFileName  FTP server file name
+     * @param resume          <code>true</code> to continue a partial upload from the size of the
+     *                        remote file
+     * @return                <code>true</code> if the upload request succeeded
+     *                        <code>false</code> otherwise
+     * @see                   IFTPUploadCallback#upload(int)
+     */
+    public boolean upload(ParcelFileDescriptor fd, String remoteFileName, boolean resume) {
+        if (fd == null) {
+            Log.e(TAG, "upload: no file descriptor");
+            return false;
+        }
+        return upload(new ParcelFileDescriptor.AutoCloseInputStream(fd), remoteFileName, resume);
+    }
+
+    /**
+     * Download remote directory tree. Directories are listed in parallel and files downloaded
+     * as they are found, progress is reported for the tree as a whole through IFTPDownload.
+     *
+     * @param remotePath  FTP server directory
+     * @param localDir    Local directory to download into, created if missing
+     * @return            <code>true</code> if the mirror request succeeded
+     *                    <code>false</code> otherwise
+     * @see               IFTPMirrorCallback#mirror(int, int)
+     */
+    public boolean mirror(String remotePath, String localDir) {
+        return mirror(remotePath, localDir, false);
+    }
+
+    /**
+     * Download remote directory tree
+     *
+     * @param remotePath   FTP server directory
+     * @param localDir     Local directory to download into, created if missing
+     * @param incremental  <code>true</code> to only download files that are new or changed
+     *                     since the previous sync, judged by size and modification date
+     * @return             <code>true</code> if the mirror request succeeded
+     *                     <code>false</code> otherwise
+     * @see                IFTPMirrorCallback#mirror(int, int)
+     */
+    public boolean mirror(String remotePath, String localDir, boolean incremental) {
+        return sendCommand(FTPService.WHAT_MIRROR, incremental ? 1 : 0, FTPService.KEY_PATH, remotePath, FTPService.KEY_LOCAL_FILE_NAME, localDir);
+    }
+
+    /**
+     * Download file to stream. Data can be read as soon as it arrives, the transfer waits while
+     * the buffer is full. Reading fails with an IOException if the download fails.
+     *
+     * @param remoteFileName  FTP server file name
+     * @return                Input stream, or <code>null</code> if the download request failed
+     * @see                   IFTPCallback#download(int)
+     */
+    public InputStream downloadStream(String remoteFileName) {
+        return downloadStream(remoteFileName, FTPRingBuffer.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Download file to stream
+     *
+     * @param remoteFileName  FTP server file name
+     * @param bufferSize      Size of buffer between transfer and reader, in bytes
+     * @return                Input stream, or <code>null</code> if the download request failed
+     * @see                   IFTPCallback#download(int)
+     */
+    public InputStream downloadStream(String remoteFileName, int bufferSize) {
+        FTPRingBuffer buffer = new FTPRingBuffer(bufferSize);
+        if (!sendCommand(FTPService.WHAT_DOWNLOAD, 0, 0, makeData(FTPService.KEY_REMOTE_FILE_NAME, remoteFileName), buffer)) {
+            return null;
+        }
+        return buffer.getInputStream();
+    }
+
+    /**
+     * Download file to pipe, for passing to consumers that take a file descriptor. From API
+     * level 19, a failed download is reported to the reader through ParcelFileDescriptor.checkError().
+     *
+     * @param remoteFileName  FTP server file name
+     * @return                Read end of pipe, or <code>null</code> if the download request failed
+     * @see                   IFTPCallback#download(int)
+     */
+    public ParcelFileDescriptor downloadPipe(String remoteFileName) {
+        ParcelFileDescriptor[] pipe;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                pipe = ParcelFileDescriptor.createReliablePipe();
+            } else {
+                pipe = ParcelFileDescriptor.createPipe();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "downloadPipe: IOException: " + e.getMessage());
+            return null;
+        }
+        if (!sendCommand(FTPService.WHAT_DOWNLOAD, 0, 0, makeData(FTPService.KEY_REMOTE_FILE_NAME, remoteFileName), pipe[1])) {
+            for (ParcelFileDescriptor fd : pipe) {
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "downloadPipe: IOException: " + e.getMessage());
+                }
+            }
+            return null;
+        }
+        return pipe[0];
     }
 
     /**
@@ -320,6 +709,282 @@ public class FTPController {
         return sendCommand(FTPService.WHAT_ABORT_CURRENT_DATA_TRANSFER);
     }
 
+    /**
+     * Invalidate all cached directory listings
+     *
+     * @return  <code>true</code> if the invalidate request succeeded
+     *          <code>false</code> otherwise
+     */
+    public boolean invalidateCache() {
+        return sendCommand(FTPService.WHAT_INVALIDATE_CACHE);
+    }
+
+    /**
+     * Invalidate cached directory listing
+     *
+     * @param path       Path
+     * @param recursive  <code>true</code> to also invalidate subdirectories
+     * @return           <code>true</code> if the invalidate request succeeded
+     *                   <code>false</code> otherwise
+     */
+    public boolean invalidateCache(String path, boolean recursive) {
+        return sendCommand(FTPService.WHAT_INVALIDATE_CACHE, recursive ? 1 : 0, FTPService.KEY_PATH, path);
+    }
+
+    /**
+     * Set service option
+     *
+     * @param option  Option, one of <code>FTPService.OPTION_*</code>
+     * @param value   Option value
+     * @return        <code>true</code> if the set option request succeeded
+     *                <code>false</code> otherwise
+     * @see           FTPService#OPTION_MAX_CONNECTIONS
+     * @see           FTPService#OPTION_DOWNLOAD_WORKERS
+     * @see           FTPService#OPTION_LIST_CACHE_TTL
+     * @see           FTPService#OPTION_PROGRESS_INTERVAL
+     * @see           FTPService#OPTION_MIRROR_LIST_WORKERS
+     * @see           FTPService#OPTION_DOWNLOAD_CACHE_BYTES
+     * @see           FTPService#OPTION_KEEP_ALIVE_INTERVAL
+     * @see           FTPService#OPTION_DNS_CACHE_TTL
+     * @see           FTPService#OPTION_CHANNEL_DOWNLOADS
+     * @see           FTPService#OPTION_RECEIVE_BUFFER
+     */
+    public boolean setOption(int option, int value) {
+        return sendCommand(FTPService.WHAT_SET_OPTION, option, value);
+    }
+
+    /**
+     * Create command batch
+     *
+     * @return  Empty command batch
+     * @see     Batch
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * Batch of commands, sent to the FTP service in a single request. Commands are run back to back
+     * on the control connection, and all results are returned in a single reply, then passed to the
+     * IFTPCallback method of each command in order. Commands following a failed command are not
+     * run, and are reported with the exception of the failed command.
+     */
+    public final class Batch {
+        private final ArrayList<Bundle> mCommands = new ArrayList<>();
+
+        private Batch() {
+        }
+
+        /**
+         * @see  FTPController#currentDirectory()
+         */
+        public Batch currentDirectory() {
+            return add(FTPService.WHAT_CURRENT_DIRECTORY, 0, 0);
+        }
+
+        /**
+         * @see  FTPController#changeDirectory(String)
+         */
+        public Batch changeDirectory(String path) {
+            return add(FTPService.WHAT_CHANGE_DIRECTORY, 0, 0, FTPService.KEY_PATH, path);
+        }
+
+        /**
+         * @see  FTPController#changeDirectoryUp()
+         */
+        public Batch changeDirectoryUp() {
+            return add(FTPService.WHAT_CHANGE_DIRECTORY_UP, 0, 0);
+        }
+
+        /**
+         * @see  FTPController#list()
+         */
+        public Batch list() {
+            return add(FTPService.WHAT_LIST, 0, 0);
+        }
+
+        /**
+         * @see  FTPController#list(String, boolean)
+         */
+        public Batch list(String fileSpec, boolean forceRefresh) {
+            return add(FTPService.WHAT_LIST, forceRefresh ? 1 : 0, 0, FTPService.KEY_FILESPEC, fileSpec);
+        }
+
+        /**
+         * @see  FTPController#listNames()
+         */
+        public Batch listNames() {
+            return add(FTPService.WHAT_LIST_NAMES, 0, 0);
+        }
+
+        /**
+         * @see  FTPController#download(String, String)
+         */
+        public Batch download(String remoteFileName, String localFileName) {
+            return add(FTPService.WHAT_DOWNLOAD, 0, 0, FTPService.KEY_REMOTE_FILE_NAME, remoteFileName, FTPService.KEY_LOCAL_FILE_NAME, localFileName);
+        }
+
+        /**
+         * Send batch to FTP service
+         *
+         * @return  <code>true</code> if the batch request succeeded
+         *          <code>false</code> otherwise
+         */
+        public boolean send() {
+            if (mCommands.isEmpty()) {
+                Log.w(TAG, "send: empty batch");
+                return false;
+            }
+            Bundle data = new Bundle();
+            data.putParcelableArray(FTPService.KEY_BATCH, mCommands.toArray(new Bundle[0]));
+            return sendCommand(FTPService.WHAT_BATCH, 0, 0, data);
+        }
+
+        private Batch add(int what, int arg1, int arg2, String ... keyvals) {
+            Bundle command = makeData(keyvals);
+            command.putInt(FTPService.KEY_WHAT, what);
+            command.putInt(FTPService.KEY_ARG1, arg1);
+            command.putInt(FTPService.KEY_ARG2, arg2);
+            mCommands.add(command);
+            return this;
+        }
+    }
+
+    /**
+     * Current directory. The asynchronous commands of a session run in order with all commands
+     * sent to it, e.g. after a changeDirectory(String) sent before, so dependent commands can
+     * be queued without waiting for earlier results. Results are not passed to IFTPCallback.
+     *
+     * @return  Future path, failing with the FTP exception of the command, or with
+     *          IllegalStateException if the session is not connected
+     * @throws IllegalStateException  if the service is not started
+     */
+    public Future<String> currentDirectoryAsync() {
+        return submit(new FTPService.Command<String>() {
+            @Override
+            public String run(FTPService.Session session) throws Exception {
+                return session.currentDirectory();
+            }
+        });
+    }
+
+    /**
+     * Change directory
+     *
+     * @param path  Path
+     * @return      Future completed when the directory has been changed
+     * @throws IllegalStateException  if the service is not started
+     * @see         #currentDirectoryAsync()
+     */
+    public Future<Void> changeDirectoryAsync(final String path) {
+        return submit(new FTPService.Command<Void>() {
+            @Override
+            public Void run(FTPService.Session session) throws Exception {
+                session.changeDirectory(path != null ? path : "/");
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Change directory up
+     *
+     * @return  Future completed when the directory has been changed
+     * @throws IllegalStateException  if the service is not started
+     * @see     #currentDirectoryAsync()
+     */
+    public Future<Void> changeDirectoryUpAsync() {
+        return submit(new FTPService.Command<Void>() {
+            @Override
+            public Void run(FTPService.Session session) throws Exception {
+                session.changeDirectoryUp();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * List files in current directory
+     *
+     * @return  Future files
+     * @throws IllegalStateException  if the service is not started
+     * @see     #currentDirectoryAsync()
+     */
+    public Future<FTPFile[]> listAsync() {
+        return listAsync(null, false);
+    }
+
+    /**
+     * List files
+     *
+     * @param fileSpec      Path, or <code>null</code> for current directory
+     * @param forceRefresh  <code>true</code> to bypass the listing cache
+     * @return              Future files
+     * @throws IllegalStateException  if the service is not started
+     * @see                 #currentDirectoryAsync()
+     */
+    public Future<FTPFile[]> listAsync(final String fileSpec, final boolean forceRefresh) {
+        return submit(new FTPService.Command<FTPFile[]>() {
+            @Override
+            public FTPFile[] run(FTPService.Session session) throws Exception {
+                return session.list(fileSpec, forceRefresh).getFiles();
+            }
+        });
+    }
+
+    /**
+     * List names
+     *
+     * @return  Future names
+     * @throws IllegalStateException  if the service is not started
+     * @see     #currentDirectoryAsync()
+     */
+    public Future<String[]> listNamesAsync() {
+        return submit(new FTPService.Command<String[]>() {
+            @Override
+            public String[] run(FTPService.Session session) throws Exception {
+                return session.listNames();
+            }
+        });
+    }
+
+    private <V> Future<V> submit(FTPService.Command<V> command) {
+        FTPService.PlayerBinder binder = root().mBinder;
+        if (binder == null) {
+            throw new IllegalStateException("Service not started");
+        }
+        return binder.submit(mSession, command);
+    }
+
+    /**
+     * Open remote file for random access reads. Must not be called on the main thread.
+     *
+     * @param remotePath  FTP server file name, relative to the current directory
+     * @return            Remote file, to be closed when no longer used
+     * @throws IOException            if the file could not be opened
+     * @throws IllegalStateException  if the service is not started or the client is not logged in
+     * @see               FTPRemoteFile
+     */
+    public FTPRemoteFile openRemoteFile(String remotePath) throws IOException {
+        FTPService.PlayerBinder binder = root().mBinder;
+        if (binder == null) {
+            throw new IllegalStateException("Service not started");
+        }
+        return binder.openRemoteFile(mSession, remotePath);
+    }
+
+    /**
+     * Get transfer and session metrics
+     *
+     * @return  Snapshot of metrics recorded since the service was created,
+     *          <code>null</code> if the service is not started
+     * @see     FTPMetrics
+     */
+    public FTPMetrics getMetrics() {
+        FTPService.PlayerBinder binder = root().mBinder;
+        return binder != null ? binder.getMetrics() : null;
+    }
+
     /**
      * Get FTP service state
      *
@@ -337,6 +1002,17 @@ public class FTPController {
         mState = state;
     }
 
+    // Service started or stopped, for all sessions
+    private void setServiceState(FTPState state) {
+        setState(state);
+        for (FTPController session : mSessions.values()) {
+            session.setState(state);
+        }
+        if (state == FTPState.SERVICE_STOPPED) {
+            mSessions.clear();
+        }
+    }
+
     /**
      * Internal implementation
      */
@@ -347,8 +1023,19 @@ public class FTPController {
             mController = new WeakReference<>(controller);
         }
 
-        private void handleCallback(Message msg) {
+        // Controller of the session a reply belongs to
+        private FTPController getController(Message msg) {
             FTPController controller = mController.get();
+            if (controller == null) {
+                return null;
+            }
+            int session = msg.getData().getInt(FTPService.KEY_SESSION, FTPService.DEFAULT_SESSION);
+            FTPController sessionController = controller.getSession(session);
+            return sessionController != null ? sessionController : controller;
+        }
+
+        private void handleCallback(Message msg) {
+            FTPController controller = getController(msg);
             if (controller == null) {
                 return;
             }
@@ -356,6 +1043,10 @@ public class FTPController {
             if (callback == null) {
                 return;
             }
+            IFTPFileListCallback fileListCallback = null;
+            if (callback instanceof IFTPFileListCallback) {
+                fileListCallback = (IFTPFileListCallback) callback;
+            }
             int exception = msg.arg1;
             Bundle data = msg.getData();
 
@@ -372,6 +1063,9 @@ public class FTPController {
                     break;
                 case FTPService.WHAT_DISCONNECT:
                     controller.setState(FTPController.FTPState.SERVICE_STARTED);
+                    if (controller.mParent != null) {
+                        controller.mParent.mSessions.remove(controller.mSession);
+                    }
                     callback.disconnect(exception);
                     break;
                 case FTPService.WHAT_LOGIN:
@@ -392,46 +1086,98 @@ public class FTPController {
                     callback.changeDirectoryUp(exception);
                     break;
                 case FTPService.WHAT_LIST:
-                    FTPFile[] files = null;
                     FTPFiles parcelable = data.getParcelable(FTPService.KEY_FILES);
-                    if (parcelable != null) {
-                        files = parcelable.getFiles();
-                    } else {
+                    if (parcelable == null) {
                         Log.w(TAG, "handleCallback: KEY_FILES missing");
                     }
-                    callback.list(exception, files);
+                    if (fileListCallback != null) {
+                        fileListCallback.fileList(exception, parcelable != null ? new FTPFileList(parcelable) : null);
+                    } else {
+                        callback.list(exception, parcelable != null ? parcelable.getFiles() : null);
+                    }
                     break;
                 case FTPService.WHAT_LIST_NAMES:
                     callback.listNames(exception, data.getStringArray(FTPService.KEY_NAMES));
                     break;
+                case FTPService.WHAT_LIST_PAGED:
+                    FTPFiles page = data.getParcelable(FTPService.KEY_FILES);
+                    if (fileListCallback != null) {
+                        fileListCallback.fileListPage(exception, page != null ? new FTPFileList(page) : null, msg.arg2 != 0);
+                    } else if (callback instanceof IFTPListPageCallback) {
+                        ((IFTPListPageCallback) callback).listPage(exception, page != null ? page.getFiles() : null, msg.arg2 != 0);
+                    }
+                    break;
                 case FTPService.WHAT_DOWNLOAD:
                     callback.download(exception);
                     break;
+                case FTPService.WHAT_UPLOAD:
+                    if (callback instanceof IFTPUploadCallback) {
+                        ((IFTPUploadCallback) callback).upload(exception);
+                    }
+                    break;
+                case FTPService.WHAT_MIRROR:
+                    if (callback instanceof IFTPMirrorCallback) {
+                        ((IFTPMirrorCallback) callback).mirror(exception, msg.arg2);
+                    }
+                    break;
                 case FTPService.WHAT_ABORT_CURRENT_DATA_TRANSFER:
                     callback.abortCurrentDataTransfer(exception);
                     break;
+                case FTPService.WHAT_BATCH:
+                    Parcelable[] replies = data.getParcelableArray(FTPService.KEY_BATCH);
+                    if (replies != null) {
+                        for (Parcelable reply : replies) {
+                            handleBatchReply((Bundle) reply, controller.mSession);
+                        }
+                    }
+                    break;
                 default:
                     Log.w(TAG, "handleCallback: unsupported command:" + msg.what);
             }
             data.clear();
         }
 
+        private void handleBatchReply(Bundle reply, int session) {
+            Message msg = Message.obtain();
+            msg.what = reply.getInt(FTPService.KEY_WHAT);
+            msg.arg1 = reply.getInt(FTPService.KEY_ARG1);
+            msg.arg2 = reply.getInt(FTPService.KEY_ARG2);
+            Bundle data = reply.getBundle(FTPService.KEY_DATA);
+            if (data == null) {
+                data = new Bundle();
+            }
+            data.putInt(FTPService.KEY_SESSION, session);
+            msg.setData(data);
+            handleCallback(msg);
+            msg.recycle();
+        }
+
         private void handleDownload(Message msg) {
-            FTPController controller = mController.get();
+            FTPController controller = getController(msg);
             if (controller == null) {
                 return;
             }
+            // Upload updates mirror download updates
+            int what = msg.what;
             IFTPDownload download = controller.mDownload;
+            if (what >= FTPService.WHAT_UPLOAD_STARTED) {
+                what = what - FTPService.WHAT_UPLOAD_STARTED + FTPService.WHAT_DOWNLOAD_STARTED;
+                download = controller.mUpload;
+            }
             if (download == null) {
                 return;
             }
 
-            switch (msg.what) {
+            switch (what) {
                 case FTPService.WHAT_DOWNLOAD_STARTED:
                     download.started();
                     break;
                 case FTPService.WHAT_DOWNLOAD_TRANSFERRED:
+                    Bundle data = msg.getData();
                     download.transferred(msg.arg2);
+                    if (download instanceof IFTPProgress) {
+                        ((IFTPProgress) download).progress(data.getLong(FTPService.KEY_TRANSFERRED), data.getLong(FTPService.KEY_TOTAL, -1), data.getLong(FTPService.KEY_RATE));
+                    }
                     break;
                 case FTPService.WHAT_DOWNLOAD_COMPLETED:
                     download.completed();
@@ -479,12 +1225,14 @@ public class FTPController {
             }
             mReplyHandler = new FTPControllerHandler(controller);
             controller.mLocalMessenger = new Messenger(mReplyHandler);
-            controller.mRemoteHandler = ((FTPService.PlayerBinder)service).getHandler();
+            controller.mBinder = (FTPService.PlayerBinder)service;
+            controller.mRemoteHandler = controller.mBinder.getHandler();
             Message message = Message.obtain();
             message.what = FTPService.WHAT_START;
+            message.obj = controller.mProfiles;
             message.replyTo = controller.mLocalMessenger;
             controller.mRemoteHandler.sendMessage(message);
-            controller.setState(FTPState.SERVICE_STARTED);
+            controller.setServiceState(FTPState.SERVICE_STARTED);
        }
 
         @Override
@@ -499,7 +1247,8 @@ public class FTPController {
             mReplyHandler = null;
             controller.mLocalMessenger = null;
             controller.mRemoteMessenger = null;
-            controller.setState(FTPState.SERVICE_STOPPED);
+            controller.mBinder = null;
+            controller.setServiceState(FTPState.SERVICE_STOPPED);
         }
     }
 
@@ -512,6 +1261,19 @@ public class FTPController {
     }
 
     private boolean sendCommand(int what, int arg1, int arg2, String ... keyvals) {
+        return sendCommand(what, arg1, arg2, makeData(keyvals));
+    }
+
+    private boolean sendCommand(int what, int arg1, int arg2, Bundle data) {
+        return sendCommand(what, arg1, arg2, data, null);
+    }
+
+    // Object is passed as is, service runs in the same process
+    private boolean sendCommand(int what, int arg1, int arg2, Bundle data, Object obj) {
+        if (mParent != null) {
+            data.putInt(FTPService.KEY_SESSION, mSession);
+            return mParent.sendCommand(what, arg1, arg2, data, obj);
+        }
         if (mRemoteHandler == null) {
             Log.w(TAG, "sendCommand: no message handler");
             return false;
@@ -521,14 +1283,7 @@ public class FTPController {
         message.arg1 = arg1;
         message.arg2 = arg2;
         message.replyTo = mLocalMessenger;
-        Bundle data = new Bundle();
-        for (int i = 0; i < keyvals.length; i += 2) {
-            String key = keyvals[i];
-            String value = keyvals[i + 1];
-            if ((key != null) && (value != null)) {
-                data.putString(key, value);
-            }
-        }
+        message.obj = obj;
         if (!data.isEmpty()) {
             message.setData(data);
         }
@@ -538,4 +1293,16 @@ public class FTPController {
         }
         return true;
     }
+
+    private static Bundle makeData(String ... keyvals) {
+        Bundle data = new Bundle();
+        for (int i = 0; i < keyvals.length; i += 2) {
+            String key = keyvals[i];
+            String value = keyvals[i + 1];
+            if ((key != null) && (value != null)) {
+                data.putString(key, value);
+            }
+        }
+        return data;
+    }
 }
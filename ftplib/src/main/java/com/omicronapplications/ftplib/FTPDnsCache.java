@@ -0,0 +1,140 @@
+package com.omicronapplications.ftplib;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+
+/**
+ * Process wide cache of resolved host addresses, kept for a configurable time to live. Shared by
+ * the control connection, the session pool and raw channels, so that a host is looked up once
+ * rather than for every connection.
+ */
+final class FTPDnsCache {
+    private static final String TAG = "FTPDnsCache";
+    static final int DEFAULT_TTL = 5 * 60 * 1000; // ms
+    static final int DEFAULT_PORT = 21;
+    private static final HashMap<String, Entry> sEntries = new HashMap<>();
+    private static long sTtl = DEFAULT_TTL;
+
+    private static final class Entry {
+        final InetAddress[] addresses;
+        final long created;
+
+        Entry(InetAddress[] addresses, long created) {
+            this.addresses = addresses;
+            this.created = created;
+        }
+    }
+
+    private FTPDnsCache() {
+    }
+
+    /**
+     * Set time to live, 0 to disable cache
+     */
+    static synchronized void setTtl(long ttl) {
+        sTtl = Math.max(0, ttl);
+        sEntries.clear();
+    }
+
+    static synchronized void clear() {
+        sEntries.clear();
+    }
+
+    /**
+     * Resolve host, from cache if resolved within time to live
+     *
+     * @param host  Host name or address
+     * @return      Addresses of host, at least one
+     */
+    static InetAddress[] resolve(String host) throws UnknownHostException {
+        synchronized (FTPDnsCache.class) {
+            Entry entry = sEntries.get(host);
+            if (entry != null && SystemClock.elapsedRealtime() - entry.created <= sTtl) {
+                return entry.addresses;
+            }
+        }
+        InetAddress[] addresses = InetAddress.getAllByName(host);
+        if (addresses.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        synchronized (FTPDnsCache.class) {
+            if (sTtl > 0) {
+                sEntries.put(host, new Entry(addresses, SystemClock.elapsedRealtime()));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Drop host from cache, e.g. when none of its addresses could be connected to
+     */
+    static synchronized void invalidate(String host) {
+        sEntries.remove(host);
+    }
+
+    /**
+     * Connect client to the first reachable address of host
+     *
+     * @param client  FTP client
+     * @param host    Host name or address
+     * @param port    Host port, or -1 for default port
+     * @return        Server greeting
+     */
+    static String[] connect(FTPClient client, String host, int port) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        InetAddress[] addresses = resolve(host);
+        int connectPort = port < 0 ? DEFAULT_PORT : port;
+        IOException exception = null;
+        for (InetAddress address : addresses) {
+            try {
+                return client.connect(address.getHostAddress(), connectPort);
+            } catch (IOException e) {
+                Log.w(TAG, "connect: failed to connect to: " + address + ":" + connectPort);
+                exception = e;
+            }
+        }
+        invalidate(host);
+        throw exception;
+    }
+
+    /**
+     * Connect socket to the first reachable address of host
+     *
+     * @param host     Host name or address
+     * @param port     Host port, or -1 for default port
+     * @param timeout  Connect timeout per address, ms
+     * @return         Connected socket
+     */
+    static Socket connect(String host, int port, int timeout) throws IOException {
+        InetAddress[] addresses = resolve(host);
+        int connectPort = port < 0 ? DEFAULT_PORT : port;
+        IOException exception = null;
+        for (InetAddress address : addresses) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address, connectPort), timeout);
+                return socket;
+            } catch (IOException e) {
+                Log.w(TAG, "connect: failed to connect to: " + address + ":" + connectPort);
+                exception = e;
+                try {
+                    socket.close();
+                } catch (IOException closeException) {
+                    // Ignore
+                }
+            }
+        }
+        invalidate(host);
+        throw exception;
+    }
+}
@@ -0,0 +1,270 @@
+package com.omicronapplications.ftplib;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of downloaded file content, keyed by host, remote path, size and modification date, so
+ * that an unchanged remote file is only downloaded once. Files are kept in a cache directory up to
+ * a byte budget, evicting least recently used files, and are hard linked in and out of the cache
+ * where possible and copied otherwise.
+ * <p>
+ * Cached files get the remote modification date, so a cached file that has been written to
+ * through a hard link no longer matches and is dropped instead of served.
+ * <p>
+ * Disabled until given a byte budget, as files that cannot be hard linked are copied on the
+ * download worker.
+ */
+class FTPDownloadCache {
+    private static final String TAG = "FTPDownloadCache";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private final File mDirectory;
+    private final LinkedHashMap<String, File> mFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long mMaxBytes;
+    private long mBytes;
+    private boolean mLoaded;
+
+    FTPDownloadCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Cache key of a remote file version
+     *
+     * @return  Key, <code>null</code> if size or modification date is not known
+     */
+    static String key(FTPSessionPool.Login login, String remoteDirectory, String remoteFileName, long size, long modified) {
+        if (login == null || remoteDirectory == null || remoteFileName == null || size < 0 || modified <= 0) {
+            return null;
+        }
+        String path = remoteDirectory.endsWith("/") ? remoteDirectory + remoteFileName : remoteDirectory + "/" + remoteFileName;
+        return login.key() + path + "\n" + size + "\n" + modified;
+    }
+
+    /**
+     * Set byte budget, 0 (default) to disable cache
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = Math.max(0, maxBytes);
+        trim();
+    }
+
+    synchronized boolean isEnabled() {
+        return mMaxBytes > 0;
+    }
+
+    /**
+     * Create local file from cache
+     *
+     * @param key        Cache key
+     * @param size       Remote file size
+     * @param modified   Remote modification date
+     * @param localFile  Local file, replaced if it exists
+     * @return           <code>true</code> if the file was cached and has been created
+     *                   <code>false</code> otherwise
+     */
+    boolean get(String key, long size, long modified, File localFile) {
+        String name = name(key);
+        File cached;
+        synchronized (this) {
+            if (key == null || mMaxBytes <= 0) {
+                return false;
+            }
+            load();
+            cached = mFiles.get(name);
+            if (cached == null) {
+                return false;
+            }
+            if (cached.length() != size || !sameTime(cached.lastModified(), modified)) {
+                Log.w(TAG, "get: cached file changed: " + cached);
+                remove(name);
+                return false;
+            }
+        }
+        try {
+            if (localFile.exists() && !localFile.delete()) {
+                throw new IOException("Failed to delete: " + localFile);
+            }
+            linkOrCopy(cached, localFile);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "get: IOException: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Add downloaded file to cache, unless larger than the byte budget
+     *
+     * @param key        Cache key
+     * @param modified   Remote modification date
+     * @param localFile  Downloaded file
+     */
+    void put(String key, long modified, File localFile) {
+        long size = localFile.length();
+        synchronized (this) {
+            if (key == null || size > mMaxBytes) {
+                return;
+            }
+            load();
+        }
+        String name = name(key);
+        File cached = new File(mDirectory, name);
+        File temp = new File(mDirectory, name + ".tmp");
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Failed to create directory: " + mDirectory);
+            }
+            if (temp.exists() && !temp.delete()) {
+                throw new IOException("Failed to delete: " + temp);
+            }
+            linkOrCopy(localFile, temp);
+            if (!temp.setLastModified(modified) || !temp.renameTo(cached)) {
+                throw new IOException("Failed to store: " + cached);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "put: IOException: " + e.getMessage());
+            if (temp.exists() && !temp.delete()) {
+                Log.w(TAG, "put: failed to delete: " + temp);
+            }
+            return;
+        }
+        synchronized (this) {
+            File previous = mFiles.put(name, cached);
+            if (previous != null) {
+                mBytes -= size;
+            }
+            mBytes += size;
+            trim();
+        }
+    }
+
+    synchronized void clear() {
+        load();
+        for (File file : mFiles.values()) {
+            delete(file);
+        }
+        mFiles.clear();
+        mBytes = 0;
+    }
+
+    // Read cache directory on first use, recency of files from earlier processes is not known
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                delete(file);
+            } else {
+                mFiles.put(file.getName(), file);
+                mBytes += file.length();
+            }
+        }
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, File>> it = mFiles.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            File file = it.next().getValue();
+            mBytes -= file.length();
+            it.remove();
+            delete(file);
+        }
+    }
+
+    private void remove(String name) {
+        File file = mFiles.remove(name);
+        if (file != null) {
+            mBytes -= file.length();
+            delete(file);
+        }
+    }
+
+    // File systems may store modification dates with second precision
+    private static boolean sameTime(long a, long b) {
+        return a / 1000 == b / 1000;
+    }
+
+    private static String name(String key) {
+        if (key == null) {
+            return null;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(CHARSET));
+            StringBuilder name = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode()) + "-" + Integer.toHexString(key.length());
+        }
+    }
+
+    // Hard link needs both files on the same file system, copy otherwise
+    private static void linkOrCopy(File from, File to) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                Os.link(from.getPath(), to.getPath());
+                return;
+            } catch (ErrnoException e) {
+                // Fall back to copy
+            }
+        }
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(from);
+            out = new FileOutputStream(to);
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+            out.getFD().sync();
+        } finally {
+            close(in);
+            close(out);
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "delete: failed to delete: " + file);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.omicronapplications.ftplib;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Persistent journal of queued and running downloads, with expected size and the number of bytes
+ * known to have been written to disk. Kept as an append-only log of records, which is compacted when it
+ * grows well beyond the number of live entries. A truncated last record, from the process being
+ * killed while writing, is ignored on load.
+ * <p>
+ * Entries hold the host, port and username of their login, but not the password. Restored entries
+ * are resumed with the credentials of a session logged in to the same server.
+ */
+class FTPDownloadJournal {
+    private static final String TAG = "FTPDownloadJournal";
+    private static final int MAGIC = 0x46544a4c; // "FTJL"
+    // Version 1 also stored the password, dropped on load
+    private static final int VERSION_PASSWORD = 1;
+    private static final int VERSION = 2;
+    private static final int OP_ADD = 1;
+    private static final int OP_WRITTEN = 2;
+    private static final int OP_REMOVE = 3;
+    private static final int MIN_COMPACT_RECORDS = 64;
+    static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+    private final File mFile;
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>();
+    private DataOutputStream mOut;
+    private long mNextId = 1;
+    private int mRecords;
+
+    /**
+     * Journaled download
+     */
+    static final class Entry {
+        final long id;
+        final FTPSessionPool.Login login;
+        final String remoteDirectory;
+        final String remoteFileName;
+        final File localFile;
+        long size;
+        long written;
+
+        Entry(long id, FTPSessionPool.Login login, String remoteDirectory, String remoteFileName, File localFile, long size, long written) {
+            this.id = id;
+            this.login = login;
+            this.remoteDirectory = remoteDirectory;
+            this.remoteFileName = remoteFileName;
+            this.localFile = localFile;
+            this.size = size;
+            this.written = written;
+        }
+
+        /**
+         * Offset to resume at, the journaled length if the local file holds at least that much
+         */
+        long verifiedOffset() {
+            long length = localFile.length();
+            if (length < written || (size >= 0 && written > size)) {
+                return 0;
+            }
+            return written;
+        }
+    }
+
+    FTPDownloadJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Read journal from disk, to be called once before use
+     */
+    synchronized void load() {
+        mEntries.clear();
+        mRecords = 0;
+        if (mFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                int version = in.readInt() == MAGIC ? in.readInt() : 0;
+                if (version != VERSION && version != VERSION_PASSWORD) {
+                    Log.w(TAG, "load: unsupported journal: " + mFile);
+                } else {
+                    readRecords(in, version);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "load: IOException: " + e.getMessage());
+            } finally {
+                close(in);
+            }
+        }
+        for (Long id : mEntries.keySet()) {
+            mNextId = Math.max(mNextId, id + 1);
+        }
+        compact();
+    }
+
+    synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    synchronized List<Entry> entries() {
+        return new ArrayList<>(mEntries.values());
+    }
+
+    /**
+     * Find entry for a download, as long as the local file has not been removed
+     */
+    synchronized Entry find(FTPSessionPool.Login login, String remoteDirectory, String remoteFileName, File localFile) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.login.key().equals(login.key()) && entry.remoteDirectory.equals(remoteDirectory) && entry.remoteFileName.equals(remoteFileName) && entry.localFile.equals(localFile)) {
+                return entry.localFile.exists() ? entry : null;
+            }
+        }
+        return null;
+    }
+
+    synchronized Entry add(FTPSessionPool.Login login, String remoteDirectory, String remoteFileName, File localFile, long size, long written) {
+        Entry entry = new Entry(mNextId++, login, remoteDirectory, remoteFileName, localFile, size, written);
+        mEntries.put(entry.id, entry);
+        try {
+            DataOutputStream out = output();
+            writeAdd(out, entry);
+            out.flush();
+            mRecords++;
+        } catch (IOException e) {
+            Log.w(TAG, "add: IOException: " + e.getMessage());
+        }
+        return entry;
+    }
+
+    /**
+     * Record number of bytes written and synced to local file
+     */
+    synchronized void written(Entry entry, long size, long written) {
+        if (!mEntries.containsKey(entry.id)) {
+            return;
+        }
+        entry.size = size;
+        entry.written = written;
+        try {
+            DataOutputStream out = output();
+            out.writeByte(OP_WRITTEN);
+            out.writeLong(entry.id);
+            out.writeLong(size);
+            out.writeLong(written);
+            out.flush();
+            mRecords++;
+        } catch (IOException e) {
+            Log.w(TAG, "written: IOException: " + e.getMessage());
+        }
+        maybeCompact();
+    }
+
+    synchronized void remove(Entry entry) {
+        if (mEntries.remove(entry.id) == null) {
+            return;
+        }
+        try {
+            DataOutputStream out = output();
+            out.writeByte(OP_REMOVE);
+            out.writeLong(entry.id);
+            out.flush();
+            mRecords++;
+        } catch (IOException e) {
+            Log.w(TAG, "remove: IOException: " + e.getMessage());
+        }
+        maybeCompact();
+    }
+
+    synchronized void close() {
+        close(mOut);
+        mOut = null;
+    }
+
+    private void readRecords(DataInputStream in, int version) throws IOException {
+        try {
+            while (true) {
+                int op = in.readByte();
+                if (op == OP_ADD) {
+                    long id = in.readLong();
+                    FTPSessionPool.Login login = new FTPSessionPool.Login(in.readUTF(), in.readInt(), in.readUTF(), null);
+                    if (version == VERSION_PASSWORD) {
+                        in.readUTF();
+                    }
+                    String remoteDirectory = in.readUTF();
+                    String remoteFileName = in.readUTF();
+                    File localFile = new File(in.readUTF());
+                    long size = in.readLong();
+                    long written = in.readLong();
+                    mEntries.put(id, new Entry(id, login, remoteDirectory, remoteFileName, localFile, size, written));
+                } else if (op == OP_WRITTEN) {
+                    long id = in.readLong();
+                    long size = in.readLong();
+                    long written = in.readLong();
+                    Entry entry = mEntries.get(id);
+                    if (entry != null) {
+                        entry.size = size;
+                        entry.written = written;
+                    }
+                } else if (op == OP_REMOVE) {
+                    mEntries.remove(in.readLong());
+                } else {
+                    Log.w(TAG, "readRecords: unknown record: " + op);
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            // End of journal, or truncated last record
+        }
+    }
+
+    private static void writeAdd(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(OP_ADD);
+        out.writeLong(entry.id);
+        out.writeUTF(entry.login.host);
+        out.writeInt(entry.login.port);
+        out.writeUTF(entry.login.username);
+        out.writeUTF(entry.remoteDirectory);
+        out.writeUTF(entry.remoteFileName);
+        out.writeUTF(entry.localFile.getAbsolutePath());
+        out.writeLong(entry.size);
+        out.writeLong(entry.written);
+    }
+
+    private DataOutputStream output() throws IOException {
+        if (mOut == null) {
+            boolean append = mFile.length() > 0;
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, append)));
+            if (!append) {
+                mOut.writeInt(MAGIC);
+                mOut.writeInt(VERSION);
+            }
+        }
+        return mOut;
+    }
+
+    private void maybeCompact() {
+        if (mRecords > Math.max(MIN_COMPACT_RECORDS, 4 * mEntries.size())) {
+            compact();
+        }
+    }
+
+    // Rewrite live entries to temporary file and rename over journal
+    private void compact() {
+        close();
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            Log.w(TAG, "compact: failed to create directory: " + parent);
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Entry entry : mEntries.values()) {
+                writeAdd(out, entry);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                Log.w(TAG, "compact: failed to rename: " + temp);
+                return;
+            }
+            mRecords = mEntries.size();
+        } catch (IOException e) {
+            Log.w(TAG, "compact: IOException: " + e.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Local file output stream for a journaled download. Data is synced to disk every
+     * CHECKPOINT_BYTES and on close, and only then recorded in the journal, so the journaled
+     * length never runs ahead of what has been stored. Data may also be written to the file
+     * channel directly, and reported with written().
+     */
+    static final class CheckpointOutputStream extends OutputStream implements FTPChannel.WriteHandler {
+        private final FTPDownloadJournal mJournal;
+        private final Entry mEntry;
+        private final RandomAccessFile mFile;
+        private long mWritten;
+        private long mSynced;
+
+        /**
+         * Open local file for writing at offset, discarding anything beyond it
+         */
+        CheckpointOutputStream(FTPDownloadJournal journal, Entry entry, long offset) throws IOException {
+            mJournal = journal;
+            mEntry = entry;
+            mFile = new RandomAccessFile(entry.localFile, "rw");
+            try {
+                mFile.setLength(offset);
+                mFile.seek(offset);
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+            mWritten = offset;
+            mSynced = offset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mFile.write(b);
+            written(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mFile.write(b, off, len);
+            written(len);
+        }
+
+        /**
+         * File channel, for writing at the offset of the stream without going through it
+         */
+        FileChannel getChannel() {
+            return mFile.getChannel();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                checkpoint();
+            } finally {
+                mFile.close();
+            }
+        }
+
+        /**
+         * Report data written through the file channel
+         */
+        @Override
+        public void written(long length) throws IOException {
+            mWritten += length;
+            if (mWritten - mSynced >= CHECKPOINT_BYTES) {
+                checkpoint();
+            }
+        }
+
+        private void checkpoint() throws IOException {
+            if (mWritten == mSynced) {
+                return;
+            }
+            mFile.getFD().sync();
+            mSynced = mWritten;
+            mJournal.written(mEntry, mEntry.size, mSynced);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
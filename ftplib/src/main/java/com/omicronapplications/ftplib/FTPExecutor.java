@@ -0,0 +1,129 @@
+package com.omicronapplications.ftplib;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed size pool of background threads shared by sessions and transfers. Work that has to stay
+ * in order, such as the commands of a session, is queued on a serial lane, which runs one task
+ * at a time on the pool. Idle threads are stopped after KEEP_ALIVE, so an idle service holds no
+ * threads.
+ */
+class FTPExecutor implements Executor {
+    private static final String TAG = "FTPExecutor";
+    static final int COMMAND_THREADS = 2;
+    private static final long KEEP_ALIVE = 30 * 1000; // ms
+    private final ThreadPoolExecutor mPool;
+
+    FTPExecutor(int threadCount) {
+        int threads = Math.max(1, threadCount);
+        mPool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new WorkerFactory());
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mPool.execute(task);
+    }
+
+    /**
+     * Set number of threads, the pool grows or shrinks as threads finish their current task
+     */
+    synchronized void setThreadCount(int threadCount) {
+        int threads = Math.max(1, threadCount);
+        if (threads > mPool.getMaximumPoolSize()) {
+            mPool.setMaximumPoolSize(threads);
+            mPool.setCorePoolSize(threads);
+        } else {
+            mPool.setCorePoolSize(threads);
+            mPool.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * New serial lane, running its tasks one at a time in order of submission
+     */
+    Executor lane() {
+        return new Lane();
+    }
+
+    /**
+     * Run queued tasks, then stop threads
+     */
+    void shutdown() {
+        mPool.shutdown();
+    }
+
+    private final class Lane implements Executor {
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private boolean mActive;
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            mTasks.add(task);
+            if (!mActive) {
+                next();
+            }
+        }
+
+        private synchronized void next() {
+            final Runnable task = mTasks.poll();
+            mActive = task != null;
+            if (task == null) {
+                return;
+            }
+            try {
+                mPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            next();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "next: executor shut down, dropping " + (mTasks.size() + 1) + " tasks");
+                cancel(task);
+                for (Runnable dropped : mTasks) {
+                    cancel(dropped);
+                }
+                mTasks.clear();
+                mActive = false;
+            }
+        }
+
+        // Dropped futures are cancelled, so that callers waiting on them are released
+        private void cancel(Runnable task) {
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        }
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "FTPWorker-" + mCount.getAndIncrement());
+        }
+    }
+}
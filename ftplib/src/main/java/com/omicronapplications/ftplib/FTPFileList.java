@@ -0,0 +1,72 @@
+package com.omicronapplications.ftplib;
+
+import java.util.Date;
+
+/**
+ * Read-only list of remote files, backed by the columnar listing arrays. Values are read with
+ * index-based accessors, and FTPFile instances are only created when requested.
+ */
+public final class FTPFileList {
+    private final FTPFiles mFiles;
+
+    FTPFileList(FTPFiles files) {
+        mFiles = files;
+    }
+
+    /**
+     * Number of files
+     */
+    public int size() {
+        return mFiles.size();
+    }
+
+    public String nameAt(int index) {
+        return mFiles.nameAt(index);
+    }
+
+    public String linkAt(int index) {
+        return mFiles.linkAt(index);
+    }
+
+    public long sizeAt(int index) {
+        return mFiles.sizeAt(index);
+    }
+
+    public long modifiedMillisAt(int index) {
+        return mFiles.modifiedMillisAt(index);
+    }
+
+    /**
+     * File type
+     *
+     * @return  <code>FTPFile.TYPE_FILE</code>, <code>FTPFile.TYPE_DIRECTORY</code> or
+     *          <code>FTPFile.TYPE_LINK</code>
+     */
+    public int typeAt(int index) {
+        return mFiles.typeAt(index);
+    }
+
+    /**
+     * Create file instance for a single entry
+     */
+    public FTPFile get(int index) {
+        FTPFile file = new FTPFile();
+        file.setName(mFiles.nameAt(index));
+        file.setLink(mFiles.linkAt(index));
+        file.setModifiedDate(new Date(mFiles.modifiedMillisAt(index)));
+        file.setSize(mFiles.sizeAt(index));
+        file.setType(mFiles.typeAt(index));
+        return file;
+    }
+
+    /**
+     * Create file instances for all entries
+     */
+    public FTPFile[] toArray() {
+        FTPFile[] files = new FTPFile[size()];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = get(i);
+        }
+        return files;
+    }
+}
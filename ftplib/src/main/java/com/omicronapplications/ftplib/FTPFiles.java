@@ -3,9 +3,16 @@ package com.omicronapplications.ftplib;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.util.Date;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 class FTPFiles implements Parcelable {
+    private static final int WIRE_VERSION = 1;
+    private static final int TYPE_MASK = 0x3;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
     private final String names[];
     private final String links[];
     private final long modifiedDates[];
@@ -30,38 +37,287 @@ class FTPFiles implements Parcelable {
     }
 
     FTPFile[] getFiles() {
+        return new FTPFileList(this).toArray();
+    }
+
+    int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null && names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    String nameAt(int index) {
+        return names[index];
+    }
+
+    String linkAt(int index) {
+        return links[index];
+    }
+
+    long sizeAt(int index) {
+        return sizes[index];
+    }
+
+    long modifiedMillisAt(int index) {
+        return modifiedDates[index];
+    }
+
+    int typeAt(int index) {
+        return types[index];
+    }
+
+    private FTPFiles(String[] names, String[] links, long[] modifiedDates, long[] sizes, int[] types) {
+        this.names = names;
+        this.links = links;
+        this.modifiedDates = modifiedDates;
+        this.sizes = sizes;
+        this.types = types;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * Copy of a range of entries
+     */
+    FTPFiles slice(int from, int to) {
+        return new FTPFiles(Arrays.copyOfRange(names, from, to),
+                Arrays.copyOfRange(links, from, to),
+                Arrays.copyOfRange(modifiedDates, from, to),
+                Arrays.copyOfRange(sizes, from, to),
+                Arrays.copyOfRange(types, from, to));
+    }
+
+    /**
+     * Entries of several lists, in order
+     */
+    static FTPFiles concat(List<FTPFiles> lists) {
+        int length = 0;
+        for (FTPFiles files : lists) {
+            length += files.size();
+        }
+        FTPFiles result = new FTPFiles(new String[length], new String[length], new long[length], new long[length], new int[length]);
+        int offset = 0;
+        for (FTPFiles files : lists) {
+            int size = files.size();
+            System.arraycopy(files.names, 0, result.names, offset, size);
+            System.arraycopy(files.links, 0, result.links, offset, size);
+            System.arraycopy(files.modifiedDates, 0, result.modifiedDates, offset, size);
+            System.arraycopy(files.sizes, 0, result.sizes, offset, size);
+            System.arraycopy(files.types, 0, result.types, offset, size);
+            offset += size;
+        }
+        return result;
+    }
+
+    /**
+     * Estimated memory use in bytes
+     */
+    long byteCount() {
+        long bytes = names.length * (8 + 8 + 4 + 2 * 4);
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                bytes += 40 + 2 * names[i].length();
+            }
+            if (links[i] != null) {
+                bytes += 40 + 2 * links[i].length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encode files in compact binary format: a shared string table for names and links, variable
+     * length integers for sizes, dates as deltas from the earliest date, and 2-bit packed types.
+     */
+    byte[] encode() {
         int length = names.length;
-        com.omicronapplications.ftplib.FTPFile[] files = new FTPFile[length];
+        Encoder encoder = new Encoder(16 + 24 * length);
+        encoder.writeByte(WIRE_VERSION);
+        encoder.writeVarint(length);
+
+        HashMap<String, Integer> strings = new HashMap<>();
+        ArrayList<String> table = new ArrayList<>();
+        int[] nameIndex = new int[length];
+        int[] linkIndex = new int[length];
+        for (int i = 0; i < length; i++) {
+            nameIndex[i] = intern(names[i], strings, table);
+            linkIndex[i] = intern(links[i], strings, table);
+        }
+        encoder.writeVarint(table.size());
+        for (String string : table) {
+            encoder.writeString(string);
+        }
+
+        long base = Long.MAX_VALUE;
+        for (long date : modifiedDates) {
+            base = Math.min(base, date);
+        }
+        encoder.writeVarint(zigzag(length > 0 ? base : 0));
+
+        byte[] packedTypes = new byte[(length + 3) / 4];
+        for (int i = 0; i < length; i++) {
+            encoder.writeVarint(nameIndex[i]);
+            encoder.writeVarint(linkIndex[i]);
+            encoder.writeVarint(zigzag(sizes[i]));
+            encoder.writeVarint(modifiedDates[i] - base);
+            packedTypes[i / 4] |= (types[i] & TYPE_MASK) << (2 * (i % 4));
+        }
+        encoder.writeBytes(packedTypes);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Decode files encoded with encode()
+     */
+    static FTPFiles decode(byte[] bytes) {
+        Decoder decoder = new Decoder(bytes);
+        int version = decoder.readByte();
+        if (version != WIRE_VERSION) {
+            throw new IllegalArgumentException("Unsupported FTPFiles version: " + version);
+        }
+        int length = (int) decoder.readVarint();
+        String[] table = new String[(int) decoder.readVarint()];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = decoder.readString();
+        }
+        long base = unzigzag(decoder.readVarint());
 
+        String[] names = new String[length];
+        String[] links = new String[length];
+        long[] modifiedDates = new long[length];
+        long[] sizes = new long[length];
+        int[] types = new int[length];
         for (int i = 0; i < length; i++) {
-            files[i] = new FTPFile();
-            files[i].setName(names[i]);
-            files[i].setLink(links[i]);
-            files[i].setModifiedDate(new Date(modifiedDates[i]));
-            files[i].setSize(sizes[i]);
-            files[i].setType(types[i]);
+            names[i] = lookup(table, (int) decoder.readVarint());
+            links[i] = lookup(table, (int) decoder.readVarint());
+            sizes[i] = unzigzag(decoder.readVarint());
+            modifiedDates[i] = base + decoder.readVarint();
+        }
+        byte[] packedTypes = decoder.readBytes((length + 3) / 4);
+        for (int i = 0; i < length; i++) {
+            types[i] = (packedTypes[i / 4] >> (2 * (i % 4))) & TYPE_MASK;
+        }
+        return new FTPFiles(names, links, modifiedDates, sizes, types);
+    }
+
+    // String table index, 0 for null
+    private static int intern(String string, HashMap<String, Integer> strings, ArrayList<String> table) {
+        if (string == null) {
+            return 0;
+        }
+        Integer index = strings.get(string);
+        if (index == null) {
+            table.add(string);
+            index = table.size();
+            strings.put(string, index);
         }
-        return files;
+        return index;
+    }
+
+    private static String lookup(String[] table, int index) {
+        return index > 0 ? table[index - 1] : null;
     }
 
-    private FTPFiles(Parcel source) {
-        names = new String[3];
-        links = new String[3];
-        modifiedDates = new long[3];
-        sizes = new long[3];
-        types = new int[3];
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Encoder {
+        private byte[] mBuffer;
+        private int mLength;
+
+        Encoder(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            mBuffer[mLength++] = (byte) value;
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                mBuffer[mLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mLength++] = (byte) value;
+        }
 
-        source.readStringArray(names);
-        source.readStringArray(links);
-        source.readLongArray(modifiedDates);
-        source.readLongArray(sizes);
-        source.readIntArray(types);
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+            mLength += bytes.length;
+        }
+
+        void writeString(String string) {
+            byte[] bytes = string.getBytes(CHARSET);
+            writeVarint(bytes.length);
+            writeBytes(bytes);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, mLength);
+        }
+
+        private void ensure(int count) {
+            if (mLength + count > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + count));
+            }
+        }
+    }
+
+    private static final class Decoder {
+        private final byte[] mBuffer;
+        private int mPosition;
+
+        Decoder(byte[] buffer) {
+            mBuffer = buffer;
+        }
+
+        int readByte() {
+            return mBuffer[mPosition++] & 0xFF;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        byte[] readBytes(int count) {
+            byte[] bytes = Arrays.copyOfRange(mBuffer, mPosition, mPosition + count);
+            mPosition += count;
+            return bytes;
+        }
+
+        String readString() {
+            int length = (int) readVarint();
+            String string = new String(mBuffer, mPosition, length, CHARSET);
+            mPosition += length;
+            return string;
+        }
     }
 
     private static class FTPCreator implements Parcelable.Creator<FTPFiles> {
         @Override
         public FTPFiles createFromParcel(Parcel source) {
-            return new FTPFiles(source);
+            return decode(source.createByteArray());
         }
 
         @Override
@@ -79,10 +335,6 @@ class FTPFiles implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeStringArray(names);
-        dest.writeStringArray(links);
-        dest.writeLongArray(modifiedDates);
-        dest.writeLongArray(sizes);
-        dest.writeIntArray(types);
+        dest.writeByteArray(encode());
     }
 }
@@ -0,0 +1,133 @@
+package com.omicronapplications.ftplib;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Directory listing cache, keyed by host, user and absolute path. Entries expire after a
+ * configurable time to live, and least recently used entries are evicted when either the entry
+ * count or the estimated memory use exceeds its limit.
+ */
+class FTPListCache {
+    static final int DEFAULT_TTL = 60 * 1000; // ms
+    static final int DEFAULT_MAX_ENTRIES = 64;
+    static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTtl = DEFAULT_TTL;
+    private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mBytes;
+
+    private static final class Entry {
+        final FTPFiles files;
+        final long bytes;
+        final long created;
+
+        Entry(FTPFiles files, long created) {
+            this.files = files;
+            this.bytes = files.byteCount();
+            this.created = created;
+        }
+    }
+
+    static String key(FTPSessionPool.Login login, String path) {
+        if (login == null || path == null) {
+            return null;
+        }
+        return login.key() + path;
+    }
+
+    synchronized FTPFiles get(String key) {
+        if (key == null || mTtl <= 0) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.created > mTtl) {
+            remove(key);
+            return null;
+        }
+        return entry.files;
+    }
+
+    synchronized void put(String key, FTPFiles files) {
+        if (key == null || files == null || mTtl <= 0) {
+            return;
+        }
+        remove(key);
+        Entry entry = new Entry(files, SystemClock.elapsedRealtime());
+        if (entry.bytes > mMaxBytes) {
+            return;
+        }
+        mEntries.put(key, entry);
+        mBytes += entry.bytes;
+        trim();
+    }
+
+    /**
+     * Invalidate a single path, or all paths below and including it
+     *
+     * @param key        Cache key of path
+     * @param recursive  <code>true</code> to also invalidate subdirectories
+     */
+    synchronized void invalidate(String key, boolean recursive) {
+        if (key == null) {
+            return;
+        }
+        if (!recursive) {
+            remove(key);
+            return;
+        }
+        String prefix = key.endsWith("/") ? key : key + "/";
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (entry.getKey().equals(key) || entry.getKey().startsWith(prefix)) {
+                mBytes -= entry.getValue().bytes;
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    synchronized void setTtl(long ttl) {
+        mTtl = ttl;
+        if (mTtl <= 0) {
+            clear();
+        }
+    }
+
+    synchronized void setMaxEntries(int maxEntries) {
+        mMaxEntries = Math.max(0, maxEntries);
+        trim();
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = Math.max(0, maxBytes);
+        trim();
+    }
+
+    private void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mBytes -= entry.bytes;
+        }
+    }
+
+    private void trim() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while ((mEntries.size() > mMaxEntries || mBytes > mMaxBytes) && it.hasNext()) {
+            mBytes -= it.next().bytes;
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.omicronapplications.ftplib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import it.sauronsoftware.ftp4j.FTPFile;
+import it.sauronsoftware.ftp4j.FTPListParseException;
+import it.sauronsoftware.ftp4j.FTPListParser;
+import it.sauronsoftware.ftp4j.listparsers.DOSListParser;
+import it.sauronsoftware.ftp4j.listparsers.EPLFListParser;
+import it.sauronsoftware.ftp4j.listparsers.NetWareListParser;
+import it.sauronsoftware.ftp4j.listparsers.UnixListParser;
+
+/**
+ * Splits directory listing lines into fixed-size pages as they are received, parsing each page
+ * with the first ftp4j list parser that accepts the listing format.
+ */
+class FTPListPager implements FTPChannel.LineHandler {
+    static final int DEFAULT_PAGE_SIZE = 500;
+    private static final FTPListParser[] PARSERS = {
+            new UnixListParser(),
+            new DOSListParser(),
+            new EPLFListParser(),
+            new NetWareListParser()
+    };
+    private final int mPageSize;
+    private final PageHandler mHandler;
+    private final List<String> mLines;
+    private FTPListParser mParser;
+    private int mCount;
+
+    /**
+     * Receiver of parsed pages
+     */
+    interface PageHandler {
+        void page(FTPFiles files, boolean last);
+    }
+
+    FTPListPager(int pageSize, PageHandler handler) {
+        mPageSize = pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE;
+        mHandler = handler;
+        mLines = new ArrayList<>(mPageSize);
+    }
+
+    @Override
+    public void line(String line) throws IOException {
+        if (line.isEmpty() || line.startsWith("total ")) {
+            return;
+        }
+        mLines.add(line);
+        if (mLines.size() >= mPageSize) {
+            flush(false);
+        }
+    }
+
+    /**
+     * Send remaining lines as last page
+     */
+    void finish() throws IOException {
+        flush(true);
+    }
+
+    /**
+     * Drop lines received but not yet sent, before listing again
+     */
+    void reset() {
+        mLines.clear();
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    private void flush(boolean last) throws IOException {
+        String[] lines = mLines.toArray(new String[0]);
+        mLines.clear();
+        FTPFile[] files;
+        try {
+            files = parse(lines);
+        } catch (FTPListParseException e) {
+            throw new IOException("Unsupported listing format");
+        }
+        mCount += files.length;
+        mHandler.page(new FTPFiles(files), last);
+    }
+
+    private FTPFile[] parse(String[] lines) throws FTPListParseException {
+        if (lines.length == 0) {
+            return new FTPFile[0];
+        }
+        if (mParser != null) {
+            return mParser.parse(lines);
+        }
+        for (FTPListParser parser : PARSERS) {
+            try {
+                FTPFile[] files = parser.parse(lines);
+                mParser = parser;
+                return files;
+            } catch (FTPListParseException e) {
+                // Try next parser
+            }
+        }
+        throw new FTPListParseException();
+    }
+}
@@ -0,0 +1,153 @@
+package com.omicronapplications.ftplib;
+
+import java.io.PrintWriter;
+
+/**
+ * Snapshot of FTP session and transfer metrics. Latencies are in milliseconds, throughput in
+ * bytes per second. Values are kept in power-of-two histogram buckets, so percentiles are
+ * reported as the upper bound of the bucket they fall into.
+ */
+public final class FTPMetrics {
+    public static final int METRIC_CONNECT = 0;
+    public static final int METRIC_LOGIN = 1;
+    public static final int METRIC_PWD = 2;
+    public static final int METRIC_CWD = 3;
+    public static final int METRIC_LIST = 4;
+    public static final int METRIC_RETR = 5;
+    public static final int METRIC_FIRST_BYTE = 6;
+    public static final int METRIC_THROUGHPUT = 7;
+    static final int METRIC_COUNT = 8;
+    private static final String[] NAMES = {
+            "connect", "login", "pwd", "cwd", "list", "retr", "firstByte", "throughput"
+    };
+    private static final int BUCKETS = 48;
+    private final long[][] mBuckets;
+    private final long[] mCounts;
+    private final long[] mSums;
+    private final long[] mMax;
+    private final long mBytes;
+    private final long mTransfers;
+    private final long mFailures;
+
+    private FTPMetrics(Recorder recorder) {
+        mBuckets = new long[METRIC_COUNT][];
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            mBuckets[i] = recorder.mBuckets[i].clone();
+        }
+        mCounts = recorder.mCounts.clone();
+        mSums = recorder.mSums.clone();
+        mMax = recorder.mMax.clone();
+        mBytes = recorder.mBytes;
+        mTransfers = recorder.mTransfers;
+        mFailures = recorder.mFailures;
+    }
+
+    /**
+     * Number of recorded values
+     *
+     * @param metric  One of <code>METRIC_*</code>
+     */
+    public long getCount(int metric) {
+        return mCounts[metric];
+    }
+
+    public long getMean(int metric) {
+        return mCounts[metric] > 0 ? mSums[metric] / mCounts[metric] : 0;
+    }
+
+    public long getMax(int metric) {
+        return mMax[metric];
+    }
+
+    /**
+     * Approximate percentile
+     *
+     * @param metric      One of <code>METRIC_*</code>
+     * @param percentile  Percentile, 0 to 100
+     * @return            Upper bound of histogram bucket containing the percentile
+     */
+    public long getPercentile(int metric, double percentile) {
+        long count = mCounts[metric];
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets[metric][i];
+            if (seen >= rank && seen > 0) {
+                return Math.min((1L << i) - 1, mMax[metric]);
+            }
+        }
+        return mMax[metric];
+    }
+
+    /**
+     * Total number of bytes downloaded
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Number of completed transfers
+     */
+    public long getTransfers() {
+        return mTransfers;
+    }
+
+    /**
+     * Number of failed or aborted transfers
+     */
+    public long getFailures() {
+        return mFailures;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("transfers: " + mTransfers + ", failures: " + mFailures + ", bytes: " + mBytes);
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            writer.println(NAMES[i] + ": count: " + getCount(i) + ", mean: " + getMean(i) + ", p50: " + getPercentile(i, 50) + ", p90: " + getPercentile(i, 90) + ", p99: " + getPercentile(i, 99) + ", max: " + getMax(i));
+        }
+    }
+
+    /**
+     * Metrics recorder, kept by FTPService
+     */
+    static final class Recorder {
+        private final long[][] mBuckets = new long[METRIC_COUNT][BUCKETS];
+        private final long[] mCounts = new long[METRIC_COUNT];
+        private final long[] mSums = new long[METRIC_COUNT];
+        private final long[] mMax = new long[METRIC_COUNT];
+        private long mBytes;
+        private long mTransfers;
+        private long mFailures;
+
+        synchronized void record(int metric, long value) {
+            if (value < 0) {
+                return;
+            }
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            mBuckets[metric][bucket]++;
+            mCounts[metric]++;
+            mSums[metric] += value;
+            mMax[metric] = Math.max(mMax[metric], value);
+        }
+
+        synchronized void transfer(long bytes, long duration) {
+            mTransfers++;
+            mBytes += bytes;
+            if (duration > 0) {
+                record(METRIC_THROUGHPUT, bytes * 1000 / duration);
+            }
+        }
+
+        synchronized void failure(long bytes) {
+            mFailures++;
+            mBytes += bytes;
+        }
+
+        synchronized FTPMetrics snapshot() {
+            return new FTPMetrics(this);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.omicronapplications.ftplib;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPFile;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+
+/**
+ * Mirrors a remote directory tree to a local directory. Directories are listed by several
+ * listing tasks in parallel, and the files found are fed to the transfer scheduler through a
+ * bounded window of download tasks. Listing pauses while MAX_QUEUED_FILES files are waiting to
+ * be downloaded, so a large tree is not held in memory at once. Progress is reported for the
+ * tree as a whole.
+ */
+class FTPMirror {
+    private static final String TAG = "FTPMirror";
+    static final int DEFAULT_LIST_WORKERS = 2;
+    static final int DEFAULT_DOWNLOAD_WINDOW = 8;
+    static final int MAX_QUEUED_FILES = 1000;
+    private final FTPSessionPool mPool;
+    private final FTPTransferScheduler mScheduler;
+    private final FTPListCache mListCache;
+    private final FTPSessionPool.Login mLogin;
+    private final int mListWorkers;
+    private final int mDownloadWindow;
+    private final FTPProgressListener mListener;
+    private final Callback mCallback;
+    private final ArrayDeque<Directory> mDirectories = new ArrayDeque<>();
+    private final ArrayDeque<Entry> mFiles = new ArrayDeque<>();
+    private int mListing;
+    private int mDownloading;
+    private int mFileCount;
+    private int mFailures;
+    private long mTotal;
+    private int mResult = FTPService.EXCEPTION_OK;
+    private boolean mCancelled;
+    private boolean mDone;
+
+    /**
+     * Mirror completion callback
+     */
+    interface Callback {
+        void done(FTPMirror mirror, int result, int files, int failures);
+    }
+
+    private static final class Directory {
+        final String remotePath;
+        final File localDir;
+
+        Directory(String remotePath, File localDir) {
+            this.remotePath = remotePath;
+            this.localDir = localDir;
+        }
+    }
+
+    /**
+     * Remote file found while walking the tree
+     */
+    static final class Entry {
+        final String remoteDirectory;
+        final String name;
+        final File localFile;
+        long size;
+        long modified;
+
+        Entry(String remoteDirectory, String name, File localFile, long size, long modified) {
+            this.remoteDirectory = remoteDirectory;
+            this.name = name;
+            this.localFile = localFile;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    FTPMirror(FTPSessionPool pool, FTPTransferScheduler scheduler, FTPListCache listCache, FTPSessionPool.Login login, String remotePath, File localDir, int listWorkers, int downloadWindow, FTPProgressListener listener, Callback callback) {
+        mPool = pool;
+        mScheduler = scheduler;
+        mListCache = listCache;
+        mLogin = login;
+        mListWorkers = Math.max(1, listWorkers);
+        mDownloadWindow = Math.max(1, downloadWindow);
+        mListener = listener;
+        mCallback = callback;
+        mDirectories.add(new Directory(remotePath, localDir));
+    }
+
+    void start() {
+        mListener.started();
+        pump();
+    }
+
+    /**
+     * Stop listing and queueing files, transfers in progress are aborted separately
+     */
+    void cancel() {
+        synchronized (this) {
+            mCancelled = true;
+            mDirectories.clear();
+            mFiles.clear();
+        }
+        pump();
+    }
+
+    /**
+     * Decide whether a file is to be downloaded, called from listing task
+     *
+     * @param connection  Connection the directory was listed on, in the file's directory
+     * @param entry       Remote file
+     * @return            <code>true</code> to download file, <code>false</code> to skip
+     */
+    boolean accept(FTPSessionPool.Connection connection, Entry entry) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        return true;
+    }
+
+    /**
+     * Called after a file has been downloaded
+     */
+    void downloaded(Entry entry) {
+    }
+
+    /**
+     * Called once the tree has been walked and all files transferred, before completion callback
+     */
+    void finished(int result) {
+    }
+
+    private void pump() {
+        boolean done = false;
+        synchronized (this) {
+            // Queue may exceed limit by the contents of the directories being listed
+            while (mListing < mListWorkers && !mDirectories.isEmpty() && mFiles.size() < MAX_QUEUED_FILES) {
+                mListing++;
+                mScheduler.submit(new ListTask(mDirectories.poll()));
+            }
+            while (mDownloading < mDownloadWindow && !mFiles.isEmpty()) {
+                mDownloading++;
+                mScheduler.submit(new FileTask(mFiles.poll()));
+            }
+            if (!mDone && mListing == 0 && mDownloading == 0 && mDirectories.isEmpty() && mFiles.isEmpty()) {
+                mDone = true;
+                done = true;
+                if (mCancelled && mResult == FTPService.EXCEPTION_OK) {
+                    mResult = FTPService.EXCEPTION_FTP_ABORTED;
+                }
+            }
+        }
+        if (done) {
+            finished(mResult);
+            if (mResult == FTPService.EXCEPTION_OK) {
+                mListener.completed();
+            } else if (mCancelled) {
+                mListener.aborted();
+            } else {
+                mListener.failed();
+            }
+            mCallback.done(this, mResult, mFileCount, mFailures);
+        }
+    }
+
+    private synchronized void fail(int result) {
+        mFailures++;
+        if (mResult == FTPService.EXCEPTION_OK) {
+            mResult = result;
+        }
+    }
+
+    private final class ListTask extends FTPTransferScheduler.Task {
+        private final Directory mDirectory;
+
+        ListTask(Directory directory) {
+            super(mLogin.key());
+            mDirectory = directory;
+        }
+
+        @Override
+        public void run() {
+            FTPSessionPool.Connection connection = null;
+            try {
+                if (!mDirectory.localDir.isDirectory() && !mDirectory.localDir.mkdirs()) {
+                    throw new IOException("Failed to create directory: " + mDirectory.localDir);
+                }
+                connection = mPool.acquire(mLogin, mDirectory.remotePath);
+                FTPFile[] files = connection.client.list();
+                mListCache.put(FTPListCache.key(mLogin, mDirectory.remotePath), new FTPFiles(files));
+                add(connection, files);
+                mPool.release(connection);
+            } catch (Throwable t) {
+                Log.e(TAG, "run: failed to list: " + mDirectory.remotePath);
+                if (connection != null && t instanceof FTPException) {
+                    mPool.release(connection);
+                } else if (connection != null) {
+                    mPool.discard(connection);
+                }
+                fail(FTPService.whatException(t));
+            }
+            synchronized (FTPMirror.this) {
+                mListing--;
+            }
+            pump();
+        }
+
+        @Override
+        void cancel() {
+            // Dropped by scheduler shutdown, remainder of the tree is not transferred
+            synchronized (FTPMirror.this) {
+                mListing--;
+            }
+            FTPMirror.this.cancel();
+        }
+
+        private void add(FTPSessionPool.Connection connection, FTPFile[] files) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+            String parent = mDirectory.remotePath.endsWith("/") ? mDirectory.remotePath : mDirectory.remotePath + "/";
+            ArrayList<Directory> directories = new ArrayList<>();
+            ArrayList<Entry> entries = new ArrayList<>();
+            long total = 0;
+            for (FTPFile file : files) {
+                String name = file.getName();
+                if (name == null || name.equals(".") || name.equals("..") || name.contains("/")) {
+                    continue;
+                }
+                File local = new File(mDirectory.localDir, name);
+                if (file.getType() == FTPFile.TYPE_DIRECTORY) {
+                    directories.add(new Directory(parent + name, local));
+                } else if (file.getType() == FTPFile.TYPE_FILE) {
+                    long modified = file.getModifiedDate() != null ? file.getModifiedDate().getTime() : 0;
+                    Entry entry = new Entry(mDirectory.remotePath, name, local, file.getSize(), modified);
+                    if (accept(connection, entry)) {
+                        entries.add(entry);
+                        total += Math.max(0, entry.size);
+                    }
+                }
+            }
+            synchronized (FTPMirror.this) {
+                if (mCancelled) {
+                    return;
+                }
+                mDirectories.addAll(directories);
+                mFiles.addAll(entries);
+                mFileCount += entries.size();
+                mTotal += total;
+                total = mTotal;
+            }
+            mListener.setTotal(total);
+        }
+    }
+
+    private final class FileTask extends FTPTransferScheduler.Task {
+        private final Entry mEntry;
+
+        FileTask(Entry entry) {
+            super(mLogin.key());
+            mEntry = entry;
+        }
+
+        @Override
+        public void run() {
+            FTPSessionPool.Connection connection = null;
+            try {
+                connection = mPool.acquire(mLogin, mEntry.remoteDirectory);
+                connection.client.download(mEntry.name, mEntry.localFile, new FileListener());
+                mPool.release(connection);
+                connection = null;
+                if (mEntry.modified > 0 && !mEntry.localFile.setLastModified(mEntry.modified)) {
+                    Log.w(TAG, "run: failed to set modified date: " + mEntry.localFile);
+                }
+                downloaded(mEntry);
+            } catch (Throwable t) {
+                Log.e(TAG, "run: failed to download: " + mEntry.remoteDirectory + "/" + mEntry.name);
+                if (connection != null && t instanceof FTPException) {
+                    mPool.release(connection);
+                } else if (connection != null) {
+                    mPool.discard(connection);
+                }
+                fail(FTPService.whatException(t));
+            }
+            synchronized (FTPMirror.this) {
+                mDownloading--;
+            }
+            pump();
+        }
+
+        @Override
+        void cancel() {
+            // Dropped by scheduler shutdown, remainder of the tree is not transferred
+            synchronized (FTPMirror.this) {
+                mDownloading--;
+            }
+            FTPMirror.this.cancel();
+        }
+    }
+
+    // Forwards transferred bytes to aggregate listener
+    private final class FileListener implements FTPDataTransferListener {
+        @Override
+        public void started() {
+        }
+
+        @Override
+        public void transferred(int length) {
+            mListener.transferred(length);
+        }
+
+        @Override
+        public void completed() {
+        }
+
+        @Override
+        public void aborted() {
+        }
+
+        @Override
+        public void failed() {
+        }
+    }
+}
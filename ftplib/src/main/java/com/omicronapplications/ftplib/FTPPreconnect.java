@@ -0,0 +1,171 @@
+package com.omicronapplications.ftplib;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+
+/**
+ * Sessions connected and logged in ahead of use, one for each known server profile, each opened on
+ * its own thread so that a connect waiting for it does not hold up the thread opening it. A warm
+ * session is handed over to the first connect to its host and port, waiting for it if it is still
+ * being opened. Sessions not taken within MAX_AGE are closed.
+ */
+class FTPPreconnect {
+    private static final String TAG = "FTPPreconnect";
+    static final int MAX_AGE = 2 * 60 * 1000; // ms
+    static final int MAX_WAIT = 10 * 1000; // ms
+    private final List<Session> mSessions = new ArrayList<>();
+    private final HashSet<FTPServerProfile> mPending = new HashSet<>();
+    private boolean mClosed;
+
+    /**
+     * Warm session, connected and logged in with profile
+     */
+    static final class Session {
+        final FTPServerProfile profile;
+        final FTPClient client;
+        final String[] messages;
+        final long created;
+
+        Session(FTPServerProfile profile, FTPClient client, String[] messages, long created) {
+            this.profile = profile;
+            this.client = client;
+            this.messages = messages;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Open sessions for profiles not already opened or being opened
+     */
+    synchronized void start(FTPServerProfile[] profiles) {
+        mClosed = false;
+        expire();
+        for (FTPServerProfile profile : profiles) {
+            if (profile == null || profile.getHost() == null || find(profile.getHost(), profile.getPort()) != null) {
+                continue;
+            }
+            mPending.add(profile);
+            new Opener(profile).start();
+        }
+    }
+
+    /**
+     * Take warm session for host and port, waiting for it if still being opened
+     *
+     * @return  Session, or <code>null</code> if there is none
+     */
+    synchronized Session take(String host, int port) {
+        long deadline = SystemClock.elapsedRealtime() + MAX_WAIT;
+        while (isPending(host, port)) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                return null;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        expire();
+        Session session = find(host, port);
+        if (session != null) {
+            mSessions.remove(session);
+        }
+        return session;
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        for (Session session : mSessions) {
+            close(session.client);
+        }
+        mSessions.clear();
+        notifyAll();
+    }
+
+    private Session find(String host, int port) {
+        for (Session session : mSessions) {
+            if (session.profile.matches(host, port)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private boolean isPending(String host, int port) {
+        for (FTPServerProfile profile : mPending) {
+            if (profile.matches(host, port)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Server may have dropped sessions that have been idle for long
+    private void expire() {
+        Iterator<Session> it = mSessions.iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            if (SystemClock.elapsedRealtime() - session.created > MAX_AGE) {
+                it.remove();
+                close(session.client);
+            }
+        }
+    }
+
+    private synchronized void opened(FTPServerProfile profile, Session session) {
+        mPending.remove(profile);
+        if (session != null && (mClosed || find(profile.getHost(), profile.getPort()) != null)) {
+            close(session.client);
+        } else if (session != null) {
+            mSessions.add(session);
+        }
+        notifyAll();
+    }
+
+    private static void close(FTPClient client) {
+        try {
+            client.disconnect(false);
+        } catch (Throwable t) {
+            Log.w(TAG, "close: failed to disconnect: " + t.getMessage());
+        }
+    }
+
+    private final class Opener extends Thread {
+        private final FTPServerProfile mProfile;
+
+        Opener(FTPServerProfile profile) {
+            super("FTPPreconnect");
+            setDaemon(true);
+            mProfile = profile;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            FTPClient client = new FTPClient();
+            Session session = null;
+            try {
+                String[] messages = FTPDnsCache.connect(client, mProfile.getHost(), mProfile.getPort());
+                client.login(mProfile.getUsername(), mProfile.getPassword());
+                session = new Session(mProfile, client, messages, SystemClock.elapsedRealtime());
+            } catch (Throwable t) {
+                Log.w(TAG, "run: failed to open session to: " + mProfile.getHost() + ": " + t.getMessage());
+                if (client.isConnected()) {
+                    close(client);
+                }
+            }
+            opened(mProfile, session);
+        }
+    }
+}
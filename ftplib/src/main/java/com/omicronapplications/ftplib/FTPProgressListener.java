@@ -0,0 +1,75 @@
+package com.omicronapplications.ftplib;
+
+import android.os.SystemClock;
+
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+
+/**
+ * Transfer listener coalescing progress updates. Progress is reported once both the minimum
+ * interval has elapsed and the minimum number of bytes has been transferred since the previous
+ * report, with cumulative byte count, total size and current transfer rate.
+ */
+abstract class FTPProgressListener implements FTPDataTransferListener {
+    static final int DEFAULT_INTERVAL = 250; // ms
+    static final int DEFAULT_BYTES = 64 * 1024;
+    private final int mInterval;
+    private final int mBytes;
+    private long mTotal;
+    private long mTransferred;
+    private long mReported;
+    private long mReportedTime;
+
+    FTPProgressListener(long offset, long total, int interval, int bytes) {
+        mTransferred = offset;
+        mReported = offset;
+        mTotal = total;
+        mInterval = interval;
+        mBytes = bytes;
+        mReportedTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Progress update
+     *
+     * @param length       Bytes transferred since previous update
+     * @param transferred  Total bytes transferred, including any resume offset
+     * @param total        File size, or <code>-1</code> if unknown
+     * @param rate         Transfer rate since previous update, bytes/s
+     */
+    abstract void progress(int length, long transferred, long total, long rate);
+
+    synchronized void setTotal(long total) {
+        mTotal = total;
+    }
+
+    synchronized long getTransferred() {
+        return mTransferred;
+    }
+
+    @Override
+    public synchronized void transferred(int length) {
+        mTransferred += length;
+        long now = SystemClock.elapsedRealtime();
+        if (now - mReportedTime >= mInterval && mTransferred - mReported >= mBytes) {
+            report(now);
+        }
+    }
+
+    /**
+     * Report any progress not yet reported
+     */
+    synchronized void flush() {
+        if (mTransferred != mReported) {
+            report(SystemClock.elapsedRealtime());
+        }
+    }
+
+    private void report(long now) {
+        long length = mTransferred - mReported;
+        long elapsed = now - mReportedTime;
+        long rate = elapsed > 0 ? length * 1000 / elapsed : 0;
+        mReported = mTransferred;
+        mReportedTime = now;
+        progress((int) Math.min(length, Integer.MAX_VALUE), mTransferred, mTotal, rate);
+    }
+}
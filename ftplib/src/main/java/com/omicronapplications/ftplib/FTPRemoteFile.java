@@ -0,0 +1,327 @@
+package com.omicronapplications.ftplib;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+
+/**
+ * Random-access reader for a remote file. Reads are served from aligned blocks fetched with REST
+ * and RETR on a dedicated control connection, and kept in a least recently used block cache.
+ * While blocks are read in order the data connection is kept open, and blocks ahead of the reader
+ * are prefetched on a background thread.
+ * <p>
+ * Methods perform network I/O and must not be called on the main thread.
+ */
+public final class FTPRemoteFile implements Closeable {
+    private static final String TAG = "FTPRemoteFile";
+    public static final int BLOCK_SIZE = 256 * 1024;
+    static final int CACHE_BLOCKS = 32;
+    static final int PREFETCH_BLOCKS = 4;
+    private static final int SEQUENTIAL_READS = 2;
+    private final FTPChannel mChannel;
+    private final String mPath;
+    private final Object mChannelLock = new Object();
+    private final LinkedHashMap<Long, byte[]> mBlocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > CACHE_BLOCKS;
+        }
+    };
+    private final Set<Long> mLoading = new HashSet<>();
+    private long mSize = -1;
+    private long mLastBlock = -1;
+    private int mSequential;
+    private long mPrefetchUntil = -1;
+    private Thread mPrefetcher;
+    private boolean mClosed;
+    // Data connection of RETR in progress, guarded by mChannelLock
+    private SocketChannel mData;
+    private InputStream mDataStream;
+    private long mDataPosition = -1;
+
+    FTPRemoteFile(FTPSessionPool.Login login, String path) {
+        mChannel = new FTPChannel(login);
+        mPath = path;
+    }
+
+    /**
+     * Connect and request file size
+     */
+    void open() throws IOException {
+        synchronized (mChannelLock) {
+            try {
+                connect();
+                FTPChannel.Reply reply = mChannel.command("SIZE " + mPath);
+                FTPChannel.expect(reply, 213);
+                mSize = Long.parseLong(reply.message().trim());
+            } catch (FTPException | FTPIllegalReplyException | NumberFormatException e) {
+                mChannel.close();
+                throw new IOException("Failed to open " + mPath + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Remote file path
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * File size in bytes
+     */
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * Read bytes at position, without changing any file position
+     *
+     * @param position  File position
+     * @param dst       Buffer to read into, up to its remaining bytes
+     * @return          Number of bytes read, -1 if position is at or beyond end of file
+     */
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        int read = 0;
+        while (dst.hasRemaining() && position < mSize) {
+            long index = position / BLOCK_SIZE;
+            byte[] block = getBlock(index);
+            int offset = (int) (position - index * BLOCK_SIZE);
+            int count = Math.min(dst.remaining(), block.length - offset);
+            dst.put(block, offset, count);
+            position += count;
+            read += count;
+        }
+        return read == 0 && position >= mSize ? -1 : read;
+    }
+
+    /**
+     * Read bytes at position
+     *
+     * @see  #read(long, ByteBuffer)
+     */
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        return read(position, ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public void close() {
+        Thread prefetcher;
+        synchronized (this) {
+            mClosed = true;
+            mBlocks.clear();
+            prefetcher = mPrefetcher;
+            notifyAll();
+        }
+        if (prefetcher != null) {
+            prefetcher.interrupt();
+        }
+        synchronized (mChannelLock) {
+            closeData();
+            mChannel.close();
+        }
+    }
+
+    private byte[] getBlock(long index) throws IOException {
+        synchronized (this) {
+            access(index);
+            while (true) {
+                if (mClosed) {
+                    throw new IOException("File closed");
+                }
+                byte[] block = mBlocks.get(index);
+                if (block != null) {
+                    return block;
+                }
+                if (!mLoading.contains(index)) {
+                    mLoading.add(index);
+                    break;
+                }
+                await();
+            }
+        }
+        return load(index);
+    }
+
+    // Track sequential access, and extend prefetch window while it lasts
+    private void access(long index) {
+        if (index == mLastBlock) {
+            return;
+        }
+        mSequential = index == mLastBlock + 1 ? mSequential + 1 : 0;
+        mLastBlock = index;
+        if (mSequential >= SEQUENTIAL_READS) {
+            mPrefetchUntil = index + PREFETCH_BLOCKS;
+            if (mPrefetcher == null) {
+                mPrefetcher = new Prefetcher();
+                mPrefetcher.start();
+            }
+            notifyAll();
+        }
+    }
+
+    private byte[] load(long index) throws IOException {
+        byte[] block = null;
+        try {
+            synchronized (mChannelLock) {
+                block = fetch(index);
+            }
+            return block;
+        } finally {
+            synchronized (this) {
+                mLoading.remove(index);
+                if (block != null && !mClosed) {
+                    mBlocks.put(index, block);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private byte[] fetch(long index) throws IOException {
+        long position = index * BLOCK_SIZE;
+        byte[] block = new byte[(int) Math.min(BLOCK_SIZE, mSize - position)];
+        try {
+            if (mData == null || mDataPosition != position) {
+                closeData();
+                connect();
+                FTPChannel.expect(mChannel.command("REST " + position), 350);
+                SocketChannel data = mChannel.openPassive();
+                FTPChannel.Reply reply = mChannel.command("RETR " + mPath);
+                if (!reply.isPreliminary()) {
+                    data.close();
+                    throw new FTPException(reply.code, reply.message());
+                }
+                mData = data;
+                // Socket stream rather than channel reads, so that SO_TIMEOUT applies
+                data.socket().setSoTimeout(FTPChannel.READ_TIMEOUT);
+                mDataStream = data.socket().getInputStream();
+                mDataPosition = position;
+            }
+            int offset = 0;
+            while (offset < block.length) {
+                int read = mDataStream.read(block, offset, block.length - offset);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of file at: " + (position + offset));
+                }
+                offset += read;
+            }
+            mDataPosition += block.length;
+            if (mDataPosition >= mSize) {
+                closeData();
+            }
+            return block;
+        } catch (IOException | FTPException | FTPIllegalReplyException e) {
+            Log.w(TAG, "fetch: failed at: " + position + ": " + e.getMessage());
+            // Reconnect on next fetch
+            closeData();
+            mChannel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage());
+        }
+    }
+
+    private void connect() throws IOException {
+        if (mChannel.isConnected()) {
+            return;
+        }
+        try {
+            mChannel.open();
+        } catch (FTPException | FTPIllegalReplyException e) {
+            throw new IOException("Failed to connect: " + e.getMessage());
+        }
+    }
+
+    // Closing the data connection ends the RETR, with a single final reply on the control connection
+    private void closeData() {
+        if (mData == null) {
+            return;
+        }
+        try {
+            mData.close();
+            if (mChannel.isConnected()) {
+                mChannel.readReply();
+            }
+        } catch (IOException | FTPIllegalReplyException e) {
+            Log.w(TAG, "closeData: " + e.getMessage());
+            mChannel.close();
+        }
+        mData = null;
+        mDataStream = null;
+        mDataPosition = -1;
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private final class Prefetcher extends Thread {
+        Prefetcher() {
+            super("FTPRemoteFile");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                long index;
+                synchronized (FTPRemoteFile.this) {
+                    index = next();
+                    while (index < 0 && !mClosed) {
+                        try {
+                            FTPRemoteFile.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        index = next();
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+                    mLoading.add(index);
+                }
+                try {
+                    load(index);
+                } catch (IOException e) {
+                    Log.w(TAG, "run: prefetch failed: " + e.getMessage());
+                    synchronized (FTPRemoteFile.this) {
+                        mPrefetchUntil = -1;
+                    }
+                }
+            }
+        }
+
+        // First block in prefetch window that is neither cached nor loading, or -1
+        private long next() {
+            long last = Math.min(mPrefetchUntil, (mSize - 1) / BLOCK_SIZE);
+            for (long index = mLastBlock + 1; index <= last; index++) {
+                if (!mBlocks.containsKey(index) && !mLoading.contains(index)) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.omicronapplications.ftplib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded ring buffer connecting a download to a reader. The transfer thread writes into the
+ * buffer and blocks while it is full, the reader blocks while it is empty. A failed transfer is
+ * reported to the reader as an IOException once the buffered data has been read.
+ */
+class FTPRingBuffer {
+    static final int DEFAULT_CAPACITY = 256 * 1024;
+    private final byte[] mBuffer;
+    private final Input mInput = new Input();
+    private final Output mOutput = new Output();
+    private int mReadPos;
+    private int mCount;
+    private boolean mWriterClosed;
+    private boolean mReaderClosed;
+    private String mError;
+
+    FTPRingBuffer(int capacity) {
+        mBuffer = new byte[Math.max(1, capacity)];
+    }
+
+    InputStream getInputStream() {
+        return mInput;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutput;
+    }
+
+    /**
+     * Close writing end, reader gets an IOException with message after remaining data
+     *
+     * @param message  Error message
+     */
+    synchronized void fail(String message) {
+        mError = message != null ? message : "Transfer failed";
+        mWriterClosed = true;
+        notifyAll();
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (mCount == mBuffer.length && !mReaderClosed) {
+                await();
+            }
+            if (mReaderClosed) {
+                throw new IOException("Reader closed");
+            }
+            if (mWriterClosed) {
+                throw new IOException("Writer closed");
+            }
+            int writePos = (mReadPos + mCount) % mBuffer.length;
+            int count = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+            System.arraycopy(b, off, mBuffer, writePos, count);
+            mCount += count;
+            off += count;
+            len -= count;
+            notifyAll();
+        }
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mCount == 0 && !mWriterClosed && !mReaderClosed) {
+            await();
+        }
+        if (mReaderClosed) {
+            throw new IOException("Stream closed");
+        }
+        if (mCount == 0) {
+            if (mError != null) {
+                throw new IOException(mError);
+            }
+            return -1;
+        }
+        int count = Math.min(len, Math.min(mCount, mBuffer.length - mReadPos));
+        System.arraycopy(mBuffer, mReadPos, b, off, count);
+        mReadPos = (mReadPos + count) % mBuffer.length;
+        mCount -= count;
+        notifyAll();
+        return count;
+    }
+
+    private synchronized int available() {
+        return mCount;
+    }
+
+    private synchronized void closeWriter() {
+        mWriterClosed = true;
+        notifyAll();
+    }
+
+    private synchronized void closeReader() {
+        mReaderClosed = true;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+
+    private final class Input extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return FTPRingBuffer.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return FTPRingBuffer.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return FTPRingBuffer.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+
+    private final class Output extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            FTPRingBuffer.this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            FTPRingBuffer.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    }
+}
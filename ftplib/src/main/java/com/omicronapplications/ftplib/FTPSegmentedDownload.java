@@ -0,0 +1,279 @@
+package com.omicronapplications.ftplib;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.sauronsoftware.ftp4j.FTPAbortedException;
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPException;
+
+/**
+ * Downloads a single file over several parallel connections. The file size is requested with
+ * SIZE, and the file is split into ranges, each fetched with REST and RETR and aborted once the
+ * range has been received. Ranges are written with positional writes into a preallocated file.
+ * Each range holds a pooled connection, so the number of ranges is limited to the connections
+ * allowed per host.
+ */
+class FTPSegmentedDownload {
+    private static final String TAG = "FTPSegmentedDownload";
+    static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private final FTPSessionPool mPool;
+    private final FTPTransferScheduler mScheduler;
+    private final FTPSessionPool.Login mLogin;
+    private final String mRemoteDirectory;
+    private final String mRemoteFileName;
+    private final File mLocalFile;
+    private final int mSegments;
+    private final FTPProgressListener mListener;
+    private final Callback mCallback;
+    private final AtomicInteger mRemaining = new AtomicInteger();
+    // Bytes written by all segments, checked against the file size once all are done
+    private final AtomicLong mReceived = new AtomicLong();
+    private volatile int mResult = FTPService.EXCEPTION_OK;
+    private volatile boolean mAborted;
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private long mSize;
+
+    /**
+     * Download completion callback, called once all segments are done
+     */
+    interface Callback {
+        void done(int result);
+    }
+
+    FTPSegmentedDownload(FTPSessionPool pool, FTPTransferScheduler scheduler, FTPSessionPool.Login login, String remoteDirectory, String remoteFileName, File localFile, int segments, FTPProgressListener listener, Callback callback) {
+        mPool = pool;
+        mScheduler = scheduler;
+        mLogin = login;
+        mRemoteDirectory = remoteDirectory;
+        mRemoteFileName = remoteFileName;
+        mLocalFile = localFile;
+        mSegments = segments;
+        mListener = listener;
+        mCallback = callback;
+    }
+
+    /**
+     * Task requesting file size and scheduling segment downloads
+     */
+    FTPTransferScheduler.Task start() {
+        return new PlanTask();
+    }
+
+    private final class PlanTask extends FTPTransferScheduler.Task {
+        PlanTask() {
+            super(mLogin != null ? mLogin.key() : null);
+        }
+
+        @Override
+        public void run() {
+            FTPSessionPool.Connection connection = null;
+            int segments;
+            try {
+                connection = mPool.acquire(mLogin, mRemoteDirectory);
+                mSize = connection.client.fileSize(mRemoteFileName);
+                mListener.setTotal(mSize);
+                // Further segments would only wait for a connection of an earlier one
+                segments = (int) Math.min(Math.min(mSegments, mPool.getMaxConnections()), mSize / MIN_SEGMENT_SIZE);
+                if (segments < 2 || !connection.client.isResumeSupported()) {
+                    downloadSingle(connection);
+                    return;
+                }
+                mPool.release(connection);
+                connection = null;
+                mFile = new RandomAccessFile(mLocalFile, "rw");
+                mFile.setLength(mSize);
+                mChannel = mFile.getChannel();
+            } catch (Throwable t) {
+                Log.e(TAG, "run: failed to prepare download: " + mRemoteFileName);
+                if (connection != null) {
+                    mPool.discard(connection);
+                }
+                closeFile();
+                mListener.failed();
+                mCallback.done(FTPService.whatException(t));
+                return;
+            }
+
+            mListener.started();
+            long segmentSize = mSize / segments;
+            mRemaining.set(segments);
+            for (int i = 0; i < segments; i++) {
+                long start = i * segmentSize;
+                long length = (i == segments - 1) ? mSize - start : segmentSize;
+                mScheduler.submit(new SegmentTask(start, length, i == segments - 1));
+            }
+        }
+
+        private void downloadSingle(FTPSessionPool.Connection connection) {
+            int result = FTPService.EXCEPTION_OK;
+            try {
+                connection.client.download(mRemoteFileName, mLocalFile, mListener);
+                mPool.release(connection);
+            } catch (Throwable t) {
+                Log.e(TAG, "downloadSingle: failed to download: " + mRemoteFileName);
+                result = FTPService.whatException(t);
+                if (t instanceof FTPException) {
+                    mPool.release(connection);
+                } else {
+                    mPool.discard(connection);
+                }
+            }
+            mCallback.done(result);
+        }
+    }
+
+    private final class SegmentTask extends FTPTransferScheduler.Task {
+        private final long mStart;
+        private final long mLength;
+        private final boolean mLast;
+
+        SegmentTask(long start, long length, boolean last) {
+            super(mLogin != null ? mLogin.key() : null);
+            mStart = start;
+            mLength = length;
+            mLast = last;
+        }
+
+        @Override
+        public void run() {
+            if (mResult != FTPService.EXCEPTION_OK || mAborted) {
+                finish();
+                return;
+            }
+            FTPSessionPool.Connection connection = null;
+            SegmentOutputStream stream = null;
+            try {
+                connection = mPool.acquire(mLogin, mRemoteDirectory);
+                stream = new SegmentOutputStream(connection.client, mStart, mLength, mLast);
+                connection.client.download(mRemoteFileName, stream, mStart, null);
+            } catch (FTPAbortedException e) {
+                if (stream == null || !stream.isComplete()) {
+                    mAborted = true;
+                }
+            } catch (Throwable t) {
+                if (stream == null || !stream.isComplete()) {
+                    Log.e(TAG, "run: failed to download segment: " + mStart + "+" + mLength);
+                    mResult = FTPService.whatException(t);
+                }
+            }
+            if (connection != null) {
+                // Control connection state after ABOR varies between servers, do not reuse
+                if (mLast && stream.isComplete()) {
+                    mPool.release(connection);
+                } else {
+                    mPool.discard(connection);
+                }
+            }
+            if (stream != null) {
+                mReceived.addAndGet(stream.getWritten());
+            }
+            if (stream != null && stream.getWritten() != mLength && mResult == FTPService.EXCEPTION_OK && !mAborted) {
+                Log.e(TAG, "run: segment incomplete: " + stream.getWritten() + "/" + mLength);
+                mResult = FTPService.EXCEPTION_FTP_DATA_TRANSFER;
+            }
+            finish();
+        }
+
+        @Override
+        void cancel() {
+            mAborted = true;
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (mRemaining.decrementAndGet() > 0) {
+            return;
+        }
+        long received = mReceived.get();
+        closeFile();
+        if (mAborted) {
+            mListener.aborted();
+            mCallback.done(FTPService.EXCEPTION_FTP_ABORTED);
+        } else if (mResult != FTPService.EXCEPTION_OK) {
+            mListener.failed();
+            mCallback.done(mResult);
+        } else if (received != mSize) {
+            Log.e(TAG, "finish: size mismatch: " + received + "/" + mSize);
+            mListener.failed();
+            mCallback.done(FTPService.EXCEPTION_FTP_DATA_TRANSFER);
+        } else {
+            mListener.completed();
+            mCallback.done(FTPService.EXCEPTION_OK);
+        }
+    }
+
+    private void closeFile() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "closeFile: IOException: " + e.getMessage());
+            }
+        }
+        mFile = null;
+        mChannel = null;
+    }
+
+    private final class SegmentOutputStream extends OutputStream {
+        private final FTPClient mClient;
+        private final long mStart;
+        private final long mLength;
+        private final boolean mLast;
+        private long mWritten;
+        private boolean mComplete;
+
+        SegmentOutputStream(FTPClient client, long start, long length, boolean last) {
+            mClient = client;
+            mStart = start;
+            mLength = length;
+            mLast = last;
+        }
+
+        long getWritten() {
+            return mWritten;
+        }
+
+        boolean isComplete() {
+            return mComplete;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int count = (int) Math.min(len, mLength - mWritten);
+            if (count <= 0) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, count);
+            while (buffer.hasRemaining()) {
+                mWritten += mChannel.write(buffer, mStart + mWritten);
+            }
+            mListener.transferred(count);
+            if (mWritten == mLength) {
+                mComplete = true;
+                if (!mLast) {
+                    try {
+                        mClient.abortCurrentDataTransfer(true);
+                    } catch (Throwable t) {
+                        throw new IOException("Failed to abort segment: " + t.getMessage());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.omicronapplications.ftplib;
+
+/**
+ * Known FTP server and login, for the service to connect to ahead of use
+ *
+ * @see  FTPController#setProfiles(FTPServerProfile...)
+ */
+public final class FTPServerProfile {
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+
+    /**
+     * Anonymous login, default port
+     *
+     * @param host  Host address
+     */
+    public FTPServerProfile(String host) {
+        this(host, -1, null, null);
+    }
+
+    /**
+     * @param host      Host address
+     * @param port      Host port, or -1 for default port
+     * @param username  User name, or <code>null</code> for anonymous login
+     * @param password  Password
+     */
+    public FTPServerProfile(String host, int port, String username, String password) {
+        this.host = host;
+        this.port = port < 0 ? -1 : port;
+        this.username = username != null ? username : "anonymous";
+        this.password = password != null ? password : "";
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    boolean matches(String host, int port) {
+        int defaultPort = FTPDnsCache.DEFAULT_PORT;
+        return this.host.equals(host) && (this.port < 0 ? defaultPort : this.port) == (port < 0 ? defaultPort : port);
+    }
+
+    boolean matches(String username, String password) {
+        return this.username.equals(username) && this.password.equals(password);
+    }
+}
@@ -8,21 +8,36 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
-import android.os.Process;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import it.sauronsoftware.ftp4j.FTPAbortedException;
 import it.sauronsoftware.ftp4j.FTPClient;
 import it.sauronsoftware.ftp4j.FTPDataTransferException;
-import it.sauronsoftware.ftp4j.FTPDataTransferListener;
 import it.sauronsoftware.ftp4j.FTPException;
 import it.sauronsoftware.ftp4j.FTPFile;
 import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
@@ -44,6 +59,13 @@ public class FTPService extends Service {
     public static final int WHAT_LIST_NAMES = 11;
     public static final int WHAT_DOWNLOAD = 12;
     public static final int WHAT_ABORT_CURRENT_DATA_TRANSFER = 13;
+    public static final int WHAT_SET_OPTION = 14;
+    public static final int WHAT_INVALIDATE_CACHE = 15;
+    public static final int WHAT_LIST_PAGED = 16;
+    public static final int WHAT_BATCH = 17;
+    public static final int WHAT_MIRROR = 18;
+    public static final int WHAT_UPLOAD = 19;
+    public static final int WHAT_PROFILES = 20;
     public static final int WHAT_COMMAND_MAX = 100;
     // Download updates
     public static final int WHAT_DOWNLOAD_STARTED = 101;
@@ -52,6 +74,13 @@ public class FTPService extends Service {
     public static final int WHAT_DOWNLOAD_ABORTED = 104;
     public static final int WHAT_DOWNLOAD_FAILED = 105;
     public static final int WHAT_DOWNLOAD_QUEUE = 106;
+    // Upload updates
+    public static final int WHAT_UPLOAD_STARTED = 111;
+    public static final int WHAT_UPLOAD_TRANSFERRED = 112;
+    public static final int WHAT_UPLOAD_COMPLETED = 113;
+    public static final int WHAT_UPLOAD_ABORTED = 114;
+    public static final int WHAT_UPLOAD_FAILED = 115;
+    public static final int WHAT_UPLOAD_QUEUE = 116;
     // Arguments, return values
     public static final String KEY_HOST = "com.omicronapplications.ftplib.key.HOST";
     public static final String KEY_USERNAME = "com.omicronapplications.ftplib.key.USERNAME";
@@ -63,6 +92,38 @@ public class FTPService extends Service {
     public static final String KEY_MESSAGE = "com.omicronapplications.ftplib.key.MESSAGE";
     public static final String KEY_FILES = "com.omicronapplications.ftplib.key.FILES";
     public static final String KEY_NAMES = "com.omicronapplications.ftplib.key.NAMES";
+    public static final String KEY_TRANSFERRED = "com.omicronapplications.ftplib.key.TRANSFERRED";
+    public static final String KEY_TOTAL = "com.omicronapplications.ftplib.key.TOTAL";
+    public static final String KEY_RATE = "com.omicronapplications.ftplib.key.RATE";
+    public static final String KEY_BATCH = "com.omicronapplications.ftplib.key.BATCH";
+    public static final String KEY_WHAT = "com.omicronapplications.ftplib.key.WHAT";
+    public static final String KEY_ARG1 = "com.omicronapplications.ftplib.key.ARG1";
+    public static final String KEY_ARG2 = "com.omicronapplications.ftplib.key.ARG2";
+    public static final String KEY_DATA = "com.omicronapplications.ftplib.key.DATA";
+    public static final String KEY_RESTART_AT = "com.omicronapplications.ftplib.key.RESTART_AT";
+    public static final String KEY_PRIORITY = "com.omicronapplications.ftplib.key.PRIORITY";
+    public static final String KEY_SESSION = "com.omicronapplications.ftplib.key.SESSION";
+    // Session of commands without KEY_SESSION, always open
+    public static final int DEFAULT_SESSION = 0;
+    // Download priorities, higher priorities are transferred first
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+    // Options
+    public static final int OPTION_MAX_CONNECTIONS = 1;
+    public static final int OPTION_DOWNLOAD_WORKERS = 2;
+    public static final int OPTION_LIST_CACHE_TTL = 3;
+    public static final int OPTION_LIST_CACHE_ENTRIES = 4;
+    public static final int OPTION_LIST_CACHE_BYTES = 5;
+    public static final int OPTION_PROGRESS_INTERVAL = 6;
+    public static final int OPTION_PROGRESS_BYTES = 7;
+    public static final int OPTION_MIRROR_LIST_WORKERS = 8;
+    public static final int OPTION_MIRROR_QUEUE = 9;
+    public static final int OPTION_DOWNLOAD_CACHE_BYTES = 10;
+    public static final int OPTION_KEEP_ALIVE_INTERVAL = 11;
+    public static final int OPTION_DNS_CACHE_TTL = 12;
+    public static final int OPTION_CHANNEL_DOWNLOADS = 13;
+    public static final int OPTION_RECEIVE_BUFFER = 14;
     // Exceptions
     public static final int EXCEPTION_OK = 0;
     public static final int EXCEPTION_UNKNOWN = -1;
@@ -74,49 +135,160 @@ public class FTPService extends Service {
     public static final int EXCEPTION_FTP_DATA_TRANSFER = -7;
     public static final int EXCEPTION_FTP_ABORTED = -8;
     public static final int EXCEPTION_FTP_LIST_PARSE = -9;
+    private static final String SYNC_DIRECTORY = "sync";
+    private static final String JOURNAL_FILE = "downloads.journal";
+    private static final String DOWNLOAD_CACHE_DIRECTORY = "downloads";
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+    private static final int RESUME_DELAY = 2000; // ms
+    private static final int DEFAULT_KEEP_ALIVE_INTERVAL = 60 * 1000; // ms
     private final IBinder mBinder = new PlayerBinder();
-    private HandlerThread mMessageThread;
+    private FTPExecutor mExecutor;
     private MessageCallback mMessageCallback;
-    private Handler mMessageHandler;
-    private HandlerThread mDownloadThread;
-    private DownloadRunner mDownloadRunner;
-    private Handler mDownloadHandler;
-    private Messenger mRemoteMessenger;
-    private FTPTransferListener mTransferListener;
+    // Sessions by id, each with its own control connection, guarded by itself
+    private final HashMap<Integer, MessageCallback> mSessions = new HashMap<>();
+    // Typed commands posted but not yet dispatched to their session, guarded by itself
+    private final HashSet<Future<?>> mCommands = new HashSet<>();
+    // Routes messages and typed commands, apart from the main thread so that in-process callers
+    // may wait on typed commands from there
+    private HandlerThread mDispatchThread;
+    private volatile Handler mMessageHandler;
+    private FTPTransferScheduler mScheduler;
+    private volatile Messenger mRemoteMessenger;
+    private volatile int mProgressInterval = FTPProgressListener.DEFAULT_INTERVAL;
+    private volatile int mProgressBytes = FTPProgressListener.DEFAULT_BYTES;
+    private volatile int mMirrorListWorkers = FTPMirror.DEFAULT_LIST_WORKERS;
+    private volatile int mMirrorQueue = FTPMirror.DEFAULT_DOWNLOAD_WINDOW;
+    private volatile int mKeepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+    // Download over raw channels into file channels rather than through ftp4j streams
+    private volatile boolean mChannelDownloads;
+    private volatile int mReceiveBufferSize;
+    private final ArrayList<FTPMirror> mMirrors = new ArrayList<>();
     // DownloadRunner/MessageCallback variables
-    private final FTPClient mClient = new FTPClient();
-    private ConcurrentLinkedQueue<DownloadElement> mDownloadQueue = new ConcurrentLinkedQueue<>();
+    private final FTPPreconnect mPreconnect = new FTPPreconnect();
+    private final FTPSessionPool mPool = new FTPSessionPool();
+    private final FTPListCache mListCache = new FTPListCache();
+    private FTPDownloadCache mDownloadCache;
+    private final FTPMetrics.Recorder mMetrics = new FTPMetrics.Recorder();
+    private FTPDownloadJournal mJournal;
+    private final HashMap<String, DownloadRunner> mDownloads = new HashMap<>();
+    // Journaled downloads waiting for a login to their server, the journal holds no passwords
+    private final ArrayList<FTPDownloadJournal.Entry> mRestored = new ArrayList<>();
+
+    /**
+     * Control connection of a session, as seen by typed commands
+     */
+    interface Session {
+        String currentDirectory() throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException;
+
+        void changeDirectory(String path) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException;
+
+        void changeDirectoryUp() throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException;
+
+        FTPFiles list(String fileSpec, boolean forceRefresh) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException, FTPAbortedException, FTPListParseException;
+
+        String[] listNames() throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException, FTPAbortedException, FTPListParseException;
+    }
+
+    /**
+     * Typed command, run in order with the other commands of a session
+     *
+     * @param <V>  Result type
+     */
+    interface Command<V> {
+        V run(Session session) throws Exception;
+    }
 
     public final class PlayerBinder extends Binder {
         Handler getHandler() {
             return mMessageHandler;
         }
+
+        /**
+         * Queue command for session, bypassing Bundles and replies for clients in the same
+         * process. The command is dispatched in order with command messages sent before it, on
+         * the dispatch thread, so its result may also be waited for on the main thread.
+         *
+         * @return  Future result of command
+         */
+        <V> Future<V> submit(final int session, final Command<V> command) {
+            Handler handler = mMessageHandler;
+            if (handler == null) {
+                throw new IllegalStateException("Service not started");
+            }
+            final FutureTask<V> task = new FutureTask<>(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    MessageCallback callback = getSession(session);
+                    if (callback == null) {
+                        throw new IllegalStateException("Unknown session: " + session);
+                    }
+                    return callback.call(command);
+                }
+            });
+            synchronized (mCommands) {
+                mCommands.add(task);
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mCommands) {
+                        mCommands.remove(task);
+                    }
+                    MessageCallback callback = getSession(session);
+                    if (callback != null) {
+                        callback.mLane.execute(task);
+                    } else {
+                        // Fails with unknown session
+                        task.run();
+                    }
+                }
+            });
+            return task;
+        }
+
+        FTPMetrics getMetrics() {
+            return mMetrics.snapshot();
+        }
+
+        FTPRemoteFile openRemoteFile(int session, String path) throws IOException {
+            MessageCallback callback = getSession(session);
+            FTPSessionPool.Login login = callback != null ? callback.mLogin : null;
+            String resolved = path != null && callback != null ? resolvePath(callback.mWorkingDirectory, path) : null;
+            if (login == null || resolved == null) {
+                throw new IllegalStateException("Client not authenticated, or working directory unknown");
+            }
+            FTPRemoteFile file = new FTPRemoteFile(login, resolved);
+            file.open();
+            return file;
+        }
+    }
+
+    private MessageCallback getSession(int session) {
+        synchronized (mSessions) {
+            return mSessions.get(session);
+        }
     }
 
     @Override
     public void onCreate() {
-        mMessageThread = new HandlerThread("FTPHandler", Process.THREAD_PRIORITY_BACKGROUND);
-        try {
-            mMessageThread.start();
-        } catch (IllegalThreadStateException e) {
-            Log.w(TAG, "onCreate: IllegalThreadStateException: " + e.getMessage());
+        // Commands and transfers share one bounded pool, messages are routed on the dispatch thread
+        mExecutor = new FTPExecutor(FTPExecutor.COMMAND_THREADS + FTPTransferScheduler.DEFAULT_WORKERS);
+        mMessageCallback = new MessageCallback(DEFAULT_SESSION);
+        synchronized (mSessions) {
+            mSessions.put(DEFAULT_SESSION, mMessageCallback);
         }
-        mMessageCallback = new MessageCallback();
-        Looper looper = mMessageThread.getLooper();
-        mMessageHandler = new Handler(looper, mMessageCallback);
+        mDispatchThread = new HandlerThread("FTPDispatcher");
+        mDispatchThread.start();
+        mMessageHandler = new Handler(mDispatchThread.getLooper(), new SessionDispatcher());
 
-        mDownloadThread = new HandlerThread("FTPClient", Process.THREAD_PRIORITY_BACKGROUND);
-        try {
-            mDownloadThread.start();
-        } catch (IllegalThreadStateException e) {
-            Log.w(TAG, "onCreate: IllegalThreadStateException: " + e.getMessage());
-        }
-        mDownloadRunner = new DownloadRunner();
-        looper = mDownloadThread.getLooper();
-        mDownloadHandler = new Handler(looper);
+        mScheduler = new FTPTransferScheduler(mExecutor, FTPTransferScheduler.DEFAULT_WORKERS, mPool.getMaxConnections());
 
-        mTransferListener = new FTPTransferListener();
-        mDownloadQueue.clear();
+        mDownloadCache = new FTPDownloadCache(new File(getCacheDir(), DOWNLOAD_CACHE_DIRECTORY));
+        mJournal = new FTPDownloadJournal(new File(getFilesDir(), JOURNAL_FILE));
+        mJournal.load();
+        synchronized (mRestored) {
+            mRestored.addAll(mJournal.entries());
+        }
     }
 
     @Override
@@ -124,33 +296,54 @@ public class FTPService extends Service {
         if (mMessageHandler != null) {
             mMessageHandler.removeCallbacksAndMessages(null);
         }
-        if (mMessageThread != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
-                mMessageThread.quitSafely();
-            } else {
-                mMessageThread.quit();
+        // Release callers waiting on commands that will not be dispatched
+        synchronized (mCommands) {
+            for (Future<?> command : mCommands) {
+                command.cancel(false);
             }
+            mCommands.clear();
+        }
+        // Queued transfers are cancelled while their requesters can still be replied to, including
+        // downloads whose resubmission was removed from the handler above
+        List<DownloadRunner> retrying = new ArrayList<>();
+        synchronized (mDownloads) {
+            for (DownloadRunner runner : mDownloads.values()) {
+                if (runner.retrying) {
+                    runner.retrying = false;
+                    retrying.add(runner);
+                }
+            }
+        }
+        for (DownloadRunner runner : retrying) {
+            runner.cancel();
         }
-        mMessageThread = null;
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+        mScheduler = null;
+
         mMessageCallback = null;
         mMessageHandler = null;
+        if (mDispatchThread != null) {
+            mDispatchThread.quit();
+        }
+        mDispatchThread = null;
+        // Queued commands are run, running transfers are completed
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
 
-        if (mDownloadHandler != null) {
-            mDownloadHandler.removeCallbacksAndMessages(null);
+        mPool.closeAll();
+        mPreconnect.close();
+        if (mJournal != null) {
+            mJournal.close();
         }
-        if (mDownloadThread != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
-                mDownloadThread.quitSafely();
-            } else {
-                mDownloadThread.quit();
+        synchronized (mSessions) {
+            for (MessageCallback session : mSessions.values()) {
+                session.release();
             }
+            mSessions.clear();
         }
-        mDownloadThread = null;
-        mDownloadRunner = null;
-        mDownloadHandler = null;
-
-        mTransferListener = null;
-        mDownloadQueue.clear();
     }
 
     @Override
@@ -158,70 +351,587 @@ public class FTPService extends Service {
         return mBinder;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("FTPService metrics:");
+        mMetrics.snapshot().dump(writer);
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
         return false;
     }
 
-    private final class DownloadRunner implements Runnable {
+    private final class DownloadRunner extends FTPTransferScheduler.Task implements FTPSegmentedDownload.Callback {
+        private final DownloadElement element;
+        private final String downloadKey;
+        // Requests collapsed into this download, guarded by mDownloads
+        private final ArrayList<Requester> requesters = new ArrayList<>();
+        // Waiting to be resubmitted after a failed attempt, guarded by mDownloads
+        private boolean retrying;
+        private int attempt;
+        private long restartAt;
+
+        DownloadRunner(DownloadElement element, Requester requester) {
+            super(element.login != null ? element.login.key() : null, element.priority);
+            this.element = element;
+            this.downloadKey = downloadKey(element.login, element.remoteDirectory, element.remoteFileName, element.localFile);
+            this.restartAt = element.restartAt;
+            requesters.add(requester);
+        }
+
         @Override
         public void run() {
-            DownloadElement element = mDownloadQueue.poll();
-            if (element == null) {
-                Log.w(TAG, "download: no file enqueued for download");
-                if (mTransferListener != null) {
-                    mTransferListener.failed();
+            int result = EXCEPTION_OK;
+            String remoteFileName = element.remoteFileName;
+            File localFile = element.localFile;
+            if (remoteFileName == null || localFile == null || restartAt < 0) {
+                Log.e(TAG, "run: not initialized: remoteFileName:" + remoteFileName + ", localFile:" + localFile + ", restartAt:" + restartAt);
+                return;
+            }
+            FTPDownloadJournal.Entry entry = element.entry;
+            long modified = element.modified;
+            // Do not write through a hard link into the download cache
+            if (restartAt == 0 && localFile.exists() && !localFile.delete()) {
+                Log.w(TAG, "run: failed to delete: " + localFile);
+            }
+            // Segments are scheduled as separate tasks, done once all are transferred
+            if (element.segments > 1) {
+                FTPTransferListener listener = new FTPTransferListener(element.session, 0, -1);
+                new FTPSegmentedDownload(mPool, mScheduler, element.login, element.remoteDirectory, remoteFileName, localFile, element.segments, listener, this).start().run();
+                return;
+            }
+            FTPTransferListener listener = new FTPTransferListener(element.session, restartAt, entry.size);
+            FTPSessionPool.Connection connection = null;
+            try {
+                connection = mPool.acquire(element.login, element.remoteDirectory, mChannelDownloads);
+                if (entry.size < 0) {
+                    mJournal.written(entry, fileSize(connection, remoteFileName), restartAt);
+                    listener.setTotal(entry.size);
                 }
-                if (mMessageCallback != null) {
-                    mMessageCallback.sendReply(WHAT_DOWNLOAD_QUEUE, EXCEPTION_UNKNOWN, mDownloadQueue.size());
+                listener.begin();
+                if (entry.size < 0 || restartAt < entry.size) {
+                    FTPDownloadJournal.CheckpointOutputStream stream = new FTPDownloadJournal.CheckpointOutputStream(mJournal, entry, restartAt);
+                    try {
+                        if (connection.channel != null) {
+                            connection.channel.setReceiveBufferSize(mReceiveBufferSize);
+                            connection.channel.retrieve(remoteFileName, stream.getChannel(), restartAt, stream, listener);
+                        } else {
+                            connection.client.download(remoteFileName, stream, restartAt, listener);
+                        }
+                    } finally {
+                        stream.close();
+                    }
                 }
+                mPool.release(connection);
+                // Connection may already be in use by another worker
+                connection = null;
+                if (entry.size >= 0 && localFile.length() != entry.size) {
+                    throw new FTPDataTransferException("Size mismatch: " + localFile.length() + "/" + entry.size);
+                }
+                // Keyed by the listed modification date, as looked up in download()
+                mDownloadCache.put(FTPDownloadCache.key(element.login, element.remoteDirectory, remoteFileName, entry.size, modified), modified, localFile);
+                result = EXCEPTION_OK;
+            } catch (Throwable t) {
+                Log.e(TAG, "run: failed to download: " + localFile + " to: " + remoteFileName + " from: " + restartAt);
+                result = whatException(t);
+                if (connection != null && t instanceof FTPException) {
+                    mPool.release(connection);
+                } else if (connection != null) {
+                    mPool.discard(connection);
+                } else {
+                    listener.failed();
+                }
+            }
+            if (isResumable(result) && attempt + 1 < MAX_RESUME_ATTEMPTS && retry()) {
                 return;
             }
+            done(result);
+        }
+
+        // Resubmit after a delay, rather than waiting on the worker and holding its host slot
+        private boolean retry() {
+            Handler handler = mMessageHandler;
+            if (handler == null || mScheduler == null) {
+                return false;
+            }
+            attempt++;
+            restartAt = element.entry.verifiedOffset();
+            synchronized (mDownloads) {
+                retrying = true;
+            }
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    resubmit();
+                }
+            }, RESUME_DELAY * attempt);
+            return true;
+        }
+
+        private void resubmit() {
+            synchronized (mDownloads) {
+                if (!retrying) {
+                    return;
+                }
+                retrying = false;
+            }
+            Log.w(TAG, "resubmit: resuming: " + element.remoteFileName + " at: " + restartAt);
+            FTPTransferScheduler scheduler = mScheduler;
+            if (scheduler != null) {
+                scheduler.submit(this);
+            } else {
+                cancel();
+            }
+        }
+
+        @Override
+        public void done(int result) {
+            List<Requester> replyTo;
+            synchronized (mDownloads) {
+                mDownloads.remove(downloadKey);
+                replyTo = new ArrayList<>(requesters);
+            }
+            downloadDone(element.entry, result, replyTo, element.session);
+        }
+
+        @Override
+        void cancel() {
+            List<Requester> replyTo;
+            synchronized (mDownloads) {
+                mDownloads.remove(downloadKey);
+                replyTo = new ArrayList<>(requesters);
+            }
+            // Journal entry is kept, so that the download is resumed on next login
+            for (Requester requester : replyTo) {
+                requester.session.sendReply(requester.replyTo, WHAT_DOWNLOAD, EXCEPTION_FTP_ABORTED, 0, null);
+            }
+        }
+    }
+
+    private static String downloadKey(FTPSessionPool.Login login, String remoteDirectory, String remoteFileName, File localFile) {
+        return (login != null ? login.key() : "") + remoteDirectory + "/" + remoteFileName + "\n" + localFile.getAbsolutePath();
+    }
+
+    // Client waiting for a download, replied to through the session it was requested in
+    private final static class Requester {
+        final MessageCallback session;
+        final Messenger replyTo;
+
+        Requester(MessageCallback session, Messenger replyTo) {
+            this.session = session;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /**
+     * Queue download, or collapse it into an identical queued or running download
+     *
+     * @param requester  Messenger to send download reply to, <code>null</code> for the current
+     *                   client
+     */
+    private int submitDownload(DownloadElement element, Messenger requester) {
+        DownloadRunner runner;
+        Requester request = new Requester(element.session, requester);
+        synchronized (mDownloads) {
+            String key = downloadKey(element.login, element.remoteDirectory, element.remoteFileName, element.localFile);
+            runner = mDownloads.get(key);
+            if (runner != null) {
+                runner.requesters.add(request);
+            } else {
+                runner = new DownloadRunner(element, request);
+                mDownloads.put(key, runner);
+                return mScheduler.submit(runner);
+            }
+        }
+        mScheduler.promote(runner, element.priority);
+        return mScheduler.size();
+    }
+
+    /**
+     * @param requesters  Requests to send download reply to, one reply each
+     * @param session     Session the download was started in, sent the queue update
+     */
+    private void downloadDone(FTPDownloadJournal.Entry entry, int result, List<Requester> requesters, MessageCallback session) {
+        FTPTransferScheduler scheduler = mScheduler;
+        // Downloads interrupted by connection loss or service shutdown are restored on next login
+        if (!isResumable(result) && scheduler != null) {
+            mJournal.remove(entry);
+        }
+        if (scheduler != null) {
+            for (Requester requester : requesters) {
+                requester.session.sendReply(requester.replyTo, WHAT_DOWNLOAD, result, 0, null);
+            }
+            session.sendReply(WHAT_DOWNLOAD_QUEUE, result, scheduler.size());
+        }
+    }
+
+    // Resume restored downloads of a server with the credentials of a session logged in to it
+    private void resumeDownloads(MessageCallback session, FTPSessionPool.Login login) {
+        List<FTPDownloadJournal.Entry> entries = new ArrayList<>();
+        synchronized (mRestored) {
+            Iterator<FTPDownloadJournal.Entry> it = mRestored.iterator();
+            while (it.hasNext()) {
+                FTPDownloadJournal.Entry entry = it.next();
+                if (entry.login.key().equals(login.key())) {
+                    entries.add(entry);
+                    it.remove();
+                }
+            }
+        }
+        if (entries.isEmpty() || mScheduler == null) {
+            return;
+        }
+        for (FTPDownloadJournal.Entry entry : entries) {
+            long restartAt = entry.verifiedOffset();
+            Log.w(TAG, "resumeDownloads: resuming: " + entry.remoteFileName + " at: " + restartAt);
+            submitDownload(new DownloadElement(session, login, entry.remoteDirectory, entry.remoteFileName, entry.localFile, restartAt, entry.size, 0, entry, PRIORITY_NORMAL, 1), null);
+        }
+    }
+
+    private final class StreamRunner extends FTPTransferScheduler.Task {
+        private final MessageCallback session;
+        private final FTPSessionPool.Login login;
+        private final String remoteDirectory;
+        private final String remoteFileName;
+        private final long size;
+        private final Object target;
+
+        /**
+         * @param target  FTPRingBuffer or write end of ParcelFileDescriptor pipe
+         */
+        StreamRunner(MessageCallback session, FTPSessionPool.Login login, String remoteDirectory, String remoteFileName, long size, Object target) {
+            super(login != null ? login.key() : null);
+            this.session = session;
+            this.login = login;
+            this.remoteDirectory = remoteDirectory;
+            this.remoteFileName = remoteFileName;
+            this.size = size;
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
             int result = EXCEPTION_OK;
-            String remoteFileName = element.remoteFileName;
-            File localFile = element.localFile;
-            int restartAt = element.restartAt;
-            if (remoteFileName == null || localFile == null || restartAt < 0 || mTransferListener == null) {
-                Log.e(TAG, "run: not initialized: remoteFileName:" + remoteFileName + ", localFile:" + localFile + ", restartAt:" + restartAt + ", mTransferListener:" + mTransferListener);
+            String error = null;
+            FTPTransferListener listener = new FTPTransferListener(session, 0, size);
+            OutputStream stream;
+            if (target instanceof FTPRingBuffer) {
+                stream = ((FTPRingBuffer) target).getOutputStream();
+            } else {
+                stream = new FileOutputStream(((ParcelFileDescriptor) target).getFileDescriptor());
+            }
+            FTPSessionPool.Connection connection = null;
+            try {
+                connection = mPool.acquire(login, remoteDirectory);
+                if (size < 0) {
+                    listener.setTotal(fileSize(connection, remoteFileName));
+                }
+                listener.begin();
+                connection.client.download(remoteFileName, stream, 0, listener);
+                mPool.release(connection);
+            } catch (Throwable t) {
+                Log.e(TAG, "run: failed to stream: " + remoteFileName);
+                result = whatException(t);
+                error = t.getMessage() != null ? t.getMessage() : t.getClass().getSimpleName();
+                if (connection != null && t instanceof FTPException) {
+                    mPool.release(connection);
+                } else if (connection != null) {
+                    mPool.discard(connection);
+                } else {
+                    listener.failed();
+                }
+            }
+            finish(error);
+            FTPTransferScheduler scheduler = mScheduler;
+            if (scheduler != null) {
+                session.sendReply(WHAT_DOWNLOAD, result);
+                session.sendReply(WHAT_DOWNLOAD_QUEUE, result, scheduler.size());
+            }
+        }
+
+        @Override
+        void cancel() {
+            finish("Download aborted");
+            session.sendReply(WHAT_DOWNLOAD, EXCEPTION_FTP_ABORTED);
+        }
+
+        // Signal end of stream to reader, or failure if error is set
+        private void finish(String error) {
+            if (target instanceof FTPRingBuffer) {
+                FTPRingBuffer buffer = (FTPRingBuffer) target;
+                if (error != null) {
+                    buffer.fail(error);
+                } else {
+                    close(buffer.getOutputStream());
+                }
                 return;
             }
+            ParcelFileDescriptor fd = (ParcelFileDescriptor) target;
             try {
-                if (restartAt > 0) {
-                    mClient.download(remoteFileName, localFile, restartAt, mTransferListener);
+                if (error != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    fd.closeWithError(error);
                 } else {
-                    mClient.download(remoteFileName, localFile, mTransferListener);
+                    fd.close();
                 }
+            } catch (IOException e) {
+                Log.w(TAG, "finish: IOException: " + e.getMessage());
+            }
+        }
+    }
+
+    private final class UploadRunner extends FTPTransferScheduler.Task {
+        private final UploadElement element;
+
+        UploadRunner(UploadElement element) {
+            super(element.login != null ? element.login.key() : null);
+            this.element = element;
+        }
+
+        @Override
+        public void run() {
+            int result = EXCEPTION_OK;
+            String remoteFileName = element.remoteFileName;
+            long total = element.localFile != null ? element.localFile.length() : -1;
+            FTPTransferListener listener = new FTPTransferListener(element.session, 0, total, true);
+            FTPSessionPool.Connection connection = null;
+            InputStream stream = element.stream;
+            try {
+                connection = mPool.acquire(element.login, element.remoteDirectory);
+                long restartAt = element.resume ? Math.max(0, fileSize(connection, remoteFileName)) : 0;
+                // Remote file larger than local file is not a partial upload of it, replace it
+                if (total >= 0 && restartAt > total) {
+                    restartAt = 0;
+                }
+                listener = new FTPTransferListener(element.session, restartAt, total, true);
+                if (stream == null) {
+                    stream = new FileInputStream(element.localFile);
+                }
+                listener.begin();
+                if (total > 0 && restartAt == total) {
+                    Log.w(TAG, "run: already uploaded: " + remoteFileName);
+                    listener.started();
+                    listener.completed();
+                } else if (restartAt > 0 && connection.client.isResumeSupported()) {
+                    connection.client.upload(remoteFileName, stream, restartAt, restartAt, listener);
+                } else if (restartAt > 0) {
+                    connection.client.append(remoteFileName, stream, restartAt, listener);
+                } else {
+                    connection.client.upload(remoteFileName, stream, 0, 0, listener);
+                }
+                mPool.release(connection);
             } catch (Throwable t) {
-                Log.e(TAG, "run: failed to download: " + localFile + " to: " + remoteFileName + " from: " + restartAt);
+                Log.e(TAG, "run: failed to upload: " + element.localFile + " to: " + remoteFileName);
                 result = whatException(t);
+                if (connection != null && t instanceof FTPException) {
+                    mPool.release(connection);
+                } else if (connection != null) {
+                    mPool.discard(connection);
+                } else {
+                    listener.failed();
+                }
+            } finally {
+                close(stream);
             }
-            if (mMessageCallback != null) {
-                mMessageCallback.sendReply(WHAT_DOWNLOAD, result);
-                mMessageCallback.sendReply(WHAT_DOWNLOAD_QUEUE, result, mDownloadQueue.size());
+            mListCache.invalidate(FTPListCache.key(element.login, element.remoteDirectory), false);
+            FTPTransferScheduler scheduler = mScheduler;
+            if (scheduler != null) {
+                element.session.sendReply(WHAT_UPLOAD, result);
+                element.session.sendReply(WHAT_UPLOAD_QUEUE, result, scheduler.size());
             }
         }
+
+        @Override
+        void cancel() {
+            close(element.stream);
+            element.session.sendReply(WHAT_UPLOAD, EXCEPTION_FTP_ABORTED);
+        }
+    }
+
+    private final static class UploadElement {
+        UploadElement(MessageCallback session, FTPSessionPool.Login login, String remoteDirectory, String remoteFileName, File localFile, InputStream stream, boolean resume) {
+            this.session = session;
+            this.login = login;
+            this.remoteDirectory = remoteDirectory;
+            this.remoteFileName = remoteFileName;
+            this.localFile = localFile;
+            this.stream = stream;
+            this.resume = resume;
+        }
+        MessageCallback session;
+        FTPSessionPool.Login login;
+        String remoteDirectory;
+        String remoteFileName;
+        File localFile;
+        InputStream stream;
+        boolean resume;
+    }
+
+    private static void close(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close: IOException: " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isResumable(int result) {
+        return result == EXCEPTION_IO || result == EXCEPTION_FTP_DATA_TRANSFER || result == EXCEPTION_FTP_ILLEGAL_REPLY;
     }
 
     private final static class DownloadElement {
-        DownloadElement(String remoteFileName, File localFile, int restartAt) {
+        DownloadElement(MessageCallback session, FTPSessionPool.Login login, String remoteDirectory, String remoteFileName, File localFile, long restartAt, long size, long modified, FTPDownloadJournal.Entry entry, int priority, int segments) {
+            this.session = session;
+            this.login = login;
+            this.remoteDirectory = remoteDirectory;
             this.remoteFileName = remoteFileName;
             this.localFile = localFile;
             this.restartAt = restartAt;
+            this.size = size;
+            this.modified = modified;
+            this.entry = entry;
+            this.priority = priority;
+            this.segments = segments;
         }
+        // Session the download was requested in, sent its updates
+        MessageCallback session;
+        FTPSessionPool.Login login;
+        String remoteDirectory;
         String remoteFileName;
         File localFile;
-        int restartAt;
+        long restartAt;
+        long size;
+        long modified;
+        FTPDownloadJournal.Entry entry;
+        int priority;
+        int segments;
+    }
+
+    private static long fileSize(FTPSessionPool.Connection connection, String remoteFileName) {
+        try {
+            if (connection.channel != null) {
+                return connection.channel.fileSize(remoteFileName);
+            }
+            return connection.client.fileSize(remoteFileName);
+        } catch (Throwable t) {
+            Log.w(TAG, "fileSize: size not available: " + remoteFileName);
+            return -1;
+        }
     }
 
-    private final class MessageCallback implements Handler.Callback {
+    // Routes commands to the lane of their session, opening a session on its first connect
+    private final class SessionDispatcher implements Handler.Callback {
+        @Override
+        public boolean handleMessage(Message msg) {
+            int id = msg.getData().getInt(KEY_SESSION, DEFAULT_SESSION);
+            MessageCallback session;
+            synchronized (mSessions) {
+                session = mSessions.get(id);
+                if (session == null && msg.what == WHAT_CONNECT) {
+                    session = new MessageCallback(id);
+                    mSessions.put(id, session);
+                }
+            }
+            if (session == null) {
+                Log.w(TAG, "handleMessage: unknown session: " + id);
+                Bundle data = new Bundle();
+                data.putInt(KEY_SESSION, id);
+                mMessageCallback.sendReply(msg.what, EXCEPTION_ILLEGAL_STATE, 0, data);
+                return true;
+            }
+            session.execute(Message.obtain(msg));
+            return true;
+        }
+    }
+
+    private final class MessageCallback implements Handler.Callback, Session {
+        private final int mSession;
+        // Commands of a session are run in order, one at a time
+        private final Executor mLane = mExecutor.lane();
+        private FTPClient mClient = new FTPClient();
+        // Profile of warm session handed over on connect, until login
+        private FTPServerProfile mWarmProfile;
+        private volatile FTPSessionPool.Login mLogin;
+        private String mHost;
+        private int mPort;
+        private volatile String mWorkingDirectory;
+        private FTPChannel mListChannel;
+        private final Runnable mKeepAlive = new Runnable() {
+            @Override
+            public void run() {
+                // Posted to the dispatch thread, NOOP is sent on the session lane
+                mLane.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        keepAlive();
+                    }
+                });
+            }
+        };
+
+        MessageCallback(int session) {
+            mSession = session;
+        }
+
+        /**
+         * Run command on session lane
+         *
+         * @param msg  Copy of command message, recycled when done
+         */
+        void execute(final Message msg) {
+            mLane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleMessage(msg);
+                    if (msg.what == WHAT_DISCONNECT && mSession != DEFAULT_SESSION) {
+                        synchronized (mSessions) {
+                            mSessions.remove(mSession);
+                        }
+                        release();
+                    }
+                    msg.recycle();
+                }
+            });
+        }
+
+        // Run typed command, on session lane
+        <V> V call(Command<V> command) throws Exception {
+            try {
+                return sessionCommand(command);
+            } finally {
+                scheduleKeepAlive();
+            }
+        }
+
+        // Close session state when the service is destroyed or the session disconnected
+        void release() {
+            Handler handler = mMessageHandler;
+            if (handler != null) {
+                handler.removeCallbacks(mKeepAlive);
+            }
+            if (mListChannel != null) {
+                mListChannel.close();
+            }
+            mListChannel = null;
+            mPool.close(mLogin);
+            mLogin = null;
+        }
+
         @Override
         public boolean handleMessage(Message msg) {
             switch (msg.what) {
                 case WHAT_START:
                     mRemoteMessenger = msg.replyTo;
+                    profiles(msg);
                     sendReply(msg.what);
                     break;
 
+                case WHAT_PROFILES:
+                    profiles(msg);
+                    break;
+
                 case WHAT_STOP:
                     sendReply(msg.what);
                     mRemoteMessenger = null;
@@ -244,41 +954,192 @@ public class FTPService extends Service {
                     break;
 
                 case WHAT_CURRENT_DIRECTORY:
-                    currentDirectory(msg);
+                    sessionCommand(msg);
                     break;
 
                 case WHAT_CHANGE_DIRECTORY:
-                    changeDirectory(msg);
+                    sessionCommand(msg);
                     break;
 
                 case WHAT_CHANGE_DIRECTORY_UP:
-                    changeDirectoryUp(msg);
+                    sessionCommand(msg);
                     break;
 
                 case WHAT_LIST:
-                    list(msg);
+                    sessionCommand(msg);
                     break;
 
                 case WHAT_LIST_NAMES:
-                    listNames(msg);
+                    sessionCommand(msg);
+                    break;
+
+                case WHAT_LIST_PAGED:
+                    listPaged(msg);
+                    break;
+
+                case WHAT_BATCH:
+                    batch(msg);
                     break;
 
                 case WHAT_DOWNLOAD:
                     download(msg);
                     break;
 
+                case WHAT_UPLOAD:
+                    upload(msg);
+                    break;
+
+                case WHAT_MIRROR:
+                    mirror(msg);
+                    break;
+
                 case WHAT_ABORT_CURRENT_DATA_TRANSFER:
                     abortCurrentDataTransfer(msg);
                     break;
 
+                case WHAT_SET_OPTION:
+                    setOption(msg);
+                    break;
+
+                case WHAT_INVALIDATE_CACHE:
+                    invalidateCache(msg);
+                    break;
+
                 default:
                     Log.w(TAG, "handleMessage: unknown message: " + msg.what);
                     break;
             }
 
+            scheduleKeepAlive();
             return true;
         }
 
+        // Run command on the control connection, restoring a dropped session and retrying once
+        private void sessionCommand(Message msg) {
+            Object obj = msg.obj;
+            BatchReplies replies = new BatchReplies();
+            msg.obj = replies;
+            runSessionCommand(msg);
+            msg.obj = obj;
+            if (isConnectionLost(replies.getResult(0)) && restoreSession()) {
+                runSessionCommand(msg);
+                return;
+            }
+            for (int i = 0; i < replies.size(); i++) {
+                Bundle reply = replies.get(i);
+                reply(msg, reply.getInt(KEY_ARG1), reply.getInt(KEY_ARG2), reply.getBundle(KEY_DATA));
+            }
+        }
+
+        // Run typed command, restoring a dropped session and retrying once
+        private <V> V sessionCommand(Command<V> command) throws Exception {
+            try {
+                return command.run(this);
+            } catch (Exception e) {
+                if (!isConnectionLost(whatException(e)) || !restoreSession()) {
+                    throw e;
+                }
+            }
+            return command.run(this);
+        }
+
+        private void runSessionCommand(Message msg) {
+            switch (msg.what) {
+                case WHAT_CURRENT_DIRECTORY:
+                    currentDirectory(msg);
+                    break;
+
+                case WHAT_CHANGE_DIRECTORY:
+                    changeDirectory(msg);
+                    break;
+
+                case WHAT_CHANGE_DIRECTORY_UP:
+                    changeDirectoryUp(msg);
+                    break;
+
+                case WHAT_LIST:
+                    list(msg);
+                    break;
+
+                case WHAT_LIST_NAMES:
+                    listNames(msg);
+                    break;
+
+                default:
+                    Log.w(TAG, "runSessionCommand: unknown message: " + msg.what);
+                    break;
+            }
+        }
+
+        private boolean isConnectionLost(int result) {
+            return mLogin != null && (result == EXCEPTION_IO || result == EXCEPTION_FTP_ILLEGAL_REPLY || result == EXCEPTION_ILLEGAL_STATE);
+        }
+
+        /**
+         * Reconnect, log in and change to the working directory of the dropped session
+         *
+         * @return  <code>true</code> if the session has been restored
+         *          <code>false</code> otherwise
+         */
+        private boolean restoreSession() {
+            FTPSessionPool.Login login = mLogin;
+            String workingDirectory = mWorkingDirectory;
+            if (login == null) {
+                return false;
+            }
+            try {
+                mClient.disconnect(false);
+            } catch (Throwable t) {
+                // Connection already closed
+            }
+            try {
+                long start = SystemClock.elapsedRealtime();
+                FTPDnsCache.connect(mClient, login.host, login.port);
+                mMetrics.record(FTPMetrics.METRIC_CONNECT, SystemClock.elapsedRealtime() - start);
+                start = SystemClock.elapsedRealtime();
+                mClient.login(login.username, login.password);
+                mMetrics.record(FTPMetrics.METRIC_LOGIN, SystemClock.elapsedRealtime() - start);
+                if (workingDirectory != null) {
+                    start = SystemClock.elapsedRealtime();
+                    mClient.changeDirectory(workingDirectory);
+                    mMetrics.record(FTPMetrics.METRIC_CWD, SystemClock.elapsedRealtime() - start);
+                }
+                Log.w(TAG, "restoreSession: reconnected to: " + login.host + ":" + login.port);
+                return true;
+            } catch (Throwable t) {
+                Log.e(TAG, "restoreSession: failed to reconnect to: " + login.host + ":" + login.port);
+                whatException(t);
+                return false;
+            }
+        }
+
+        // Send NOOP once the control connection has been idle for the keep-alive interval
+        private void scheduleKeepAlive() {
+            Handler handler = mMessageHandler;
+            if (handler == null) {
+                return;
+            }
+            handler.removeCallbacks(mKeepAlive);
+            if (mKeepAliveInterval > 0 && mLogin != null) {
+                handler.postDelayed(mKeepAlive, mKeepAliveInterval);
+            }
+        }
+
+        private void keepAlive() {
+            if (mLogin == null) {
+                return;
+            }
+            try {
+                mClient.noop();
+            } catch (Throwable t) {
+                Log.w(TAG, "keepAlive: no reply to NOOP");
+                if (isConnectionLost(whatException(t))) {
+                    restoreSession();
+                }
+            }
+            scheduleKeepAlive();
+        }
+
         private String getMessageString(Message msg, String key) {
             Bundle data = msg.getData();
             return data.getString(key);
@@ -300,12 +1161,41 @@ public class FTPService extends Service {
             sendReply(what, arg1, 0, data);
         }
 
+        private void reply(Message msg, int arg1) {
+            reply(msg, arg1, 0, null);
+        }
+
+        private void reply(Message msg, int arg1, Bundle data) {
+            reply(msg, arg1, 0, data);
+        }
+
+        private void reply(Message msg, int arg1, int arg2, Bundle data) {
+            if (msg.obj instanceof BatchReplies) {
+                ((BatchReplies) msg.obj).add(msg.what, arg1, arg2, data);
+            } else {
+                sendReply(msg.what, arg1, arg2, data);
+            }
+        }
+
         private void sendReply(int what, int arg1, int arg2, Bundle data) {
-            if (mMessageHandler == null || mRemoteMessenger == null) {
+            sendReply(null, what, arg1, arg2, data);
+        }
+
+        /**
+         * @param messenger  Messenger to reply to, <code>null</code> for the current client
+         */
+        private void sendReply(Messenger messenger, int what, int arg1, int arg2, Bundle data) {
+            Messenger remoteMessenger = messenger != null ? messenger : mRemoteMessenger;
+            Handler handler = mMessageHandler;
+            if (handler == null || remoteMessenger == null) {
                 Log.w(TAG, "sendReply: no message handler");
                 return;
             }
-            Message returnMessage = mMessageHandler.obtainMessage();
+            if (mSession != DEFAULT_SESSION) {
+                data = data != null ? data : new Bundle();
+                data.putInt(KEY_SESSION, mSession);
+            }
+            Message returnMessage = handler.obtainMessage();
             returnMessage.what = what;
             returnMessage.arg1 = arg1;
             returnMessage.arg2 = arg2;
@@ -313,7 +1203,7 @@ public class FTPService extends Service {
                 returnMessage.setData(data);
             }
             try {
-                mRemoteMessenger.send(returnMessage);
+                remoteMessenger.send(returnMessage);
             } catch (RemoteException e) {
                 Log.e(TAG, "sendReply: failed to send message");
             }
@@ -328,29 +1218,39 @@ public class FTPService extends Service {
             Bundle data = new Bundle();
             int result = EXCEPTION_OK;
             try {
+                long start = SystemClock.elapsedRealtime();
                 String[] messages;
-                if (port < 0) {
-                    messages = mClient.connect(host);
+                FTPPreconnect.Session session = mClient.isConnected() ? null : mPreconnect.take(host, port);
+                if (session != null) {
+                    mClient = session.client;
+                    mWarmProfile = session.profile;
+                    messages = session.messages;
                 } else {
-                    messages = mClient.connect(host, port);
+                    messages = FTPDnsCache.connect(mClient, host, port);
                 }
+                mMetrics.record(FTPMetrics.METRIC_CONNECT, SystemClock.elapsedRealtime() - start);
                 data.putStringArray(KEY_MESSAGE, messages);
+                mHost = host;
+                mPort = port;
             } catch (Throwable t) {
                 Log.e(TAG, "connect: failed to connect to: " + host + ":" + port);
                 result = whatException(t);
             }
-            sendReply(msg.what, result, data);
+            reply(msg, result, data);
         }
 
         private void disconnect(Message msg) {
             int result = EXCEPTION_OK;
+            closeSession();
+            mHost = null;
+            mWarmProfile = null;
             try {
                 mClient.disconnect(true);
             } catch (Throwable t) {
                 Log.e(TAG, "disconnect: failed");
                 result = whatException(t);
            }
-            sendReply(msg.what, result);
+            reply(msg, result);
         }
 
         private void login(Message msg) {
@@ -363,37 +1263,101 @@ public class FTPService extends Service {
                 password = "";
             }
             int result = EXCEPTION_OK;
+            closeSession();
+            FTPServerProfile warmProfile = mWarmProfile;
+            mWarmProfile = null;
             try {
-                mClient.login(username, password);
+                long start = SystemClock.elapsedRealtime();
+                if (warmProfile == null) {
+                    mClient.login(username, password);
+                } else if (!warmProfile.matches(username, password)) {
+                    // Warm session is logged in as another user, start over
+                    mClient.disconnect(false);
+                    FTPDnsCache.connect(mClient, mHost, mPort);
+                    mClient.login(username, password);
+                }
+                mMetrics.record(FTPMetrics.METRIC_LOGIN, SystemClock.elapsedRealtime() - start);
+                mLogin = new FTPSessionPool.Login(mHost, mPort, username, password);
+                mPool.retain(mLogin);
+                resumeDownloads(this, mLogin);
             } catch (Throwable t) {
                 Log.e(TAG, "login: failed to log in with: " + "username");
                 result = whatException(t);
             }
-            sendReply(msg.what, result);
+            reply(msg, result);
         }
 
         private void logout(Message msg) {
             int result = EXCEPTION_OK;
+            closeSession();
             try {
                 mClient.logout();
             } catch (Throwable t) {
                 Log.e(TAG, "logout: failed");
                 result = whatException(t);
             }
-            sendReply(msg.what, result);
+            reply(msg, result);
+        }
+
+        @Override
+        public String currentDirectory() throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+            long start = SystemClock.elapsedRealtime();
+            String path = mClient.currentDirectory();
+            mMetrics.record(FTPMetrics.METRIC_PWD, SystemClock.elapsedRealtime() - start);
+            mWorkingDirectory = path;
+            return path;
+        }
+
+        @Override
+        public void changeDirectory(String path) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+            long start = SystemClock.elapsedRealtime();
+            mClient.changeDirectory(path);
+            mMetrics.record(FTPMetrics.METRIC_CWD, SystemClock.elapsedRealtime() - start);
+            mWorkingDirectory = resolvePath(mWorkingDirectory, path);
+        }
+
+        @Override
+        public void changeDirectoryUp() throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+            long start = SystemClock.elapsedRealtime();
+            mClient.changeDirectoryUp();
+            mMetrics.record(FTPMetrics.METRIC_CWD, SystemClock.elapsedRealtime() - start);
+            mWorkingDirectory = resolvePath(mWorkingDirectory, "..");
+        }
+
+        @Override
+        public FTPFiles list(String fileSpec, boolean forceRefresh) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException, FTPAbortedException, FTPListParseException {
+            String key = cacheKey(fileSpec != null ? fileSpec : ".");
+            FTPFiles parcelable = forceRefresh ? null : mListCache.get(key);
+            if (parcelable == null) {
+                long start = SystemClock.elapsedRealtime();
+                FTPFile[] files;
+                if (fileSpec == null) {
+                    files = mClient.list();
+                } else {
+                    files = mClient.list(fileSpec);
+                }
+                mMetrics.record(FTPMetrics.METRIC_LIST, SystemClock.elapsedRealtime() - start);
+                parcelable = new FTPFiles(files);
+                mListCache.put(key, parcelable);
+            }
+            return parcelable;
+        }
+
+        @Override
+        public String[] listNames() throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException, FTPAbortedException, FTPListParseException {
+            return mClient.listNames();
         }
 
         private void currentDirectory(Message msg) {
             Bundle data = new Bundle();
             int result = EXCEPTION_OK;
             try {
-                String path = mClient.currentDirectory();
-                data.putString(KEY_PATH, path);
+                data.putString(KEY_PATH, currentDirectory());
             } catch (Throwable t) {
                 Log.e(TAG, "currentDirectory: failed");
                 result = whatException(t);
             }
-            sendReply(msg.what, result, data);
+            reply(msg, result, data);
         }
 
         private void changeDirectory(Message msg) {
@@ -403,136 +1367,635 @@ public class FTPService extends Service {
             }
             int result = EXCEPTION_OK;
             try {
-                mClient.changeDirectory(path);
+                changeDirectory(path);
             } catch (Throwable t) {
                 Log.e(TAG, "changeDirectory: failed to change path to: " + path);
                 result = whatException(t);
             }
-            sendReply(msg.what, result);
+            reply(msg, result);
         }
 
         private void changeDirectoryUp(Message msg) {
             int result = EXCEPTION_OK;
             try {
-                mClient.changeDirectoryUp();
+                changeDirectoryUp();
             } catch (Throwable t) {
                 Log.e(TAG, "changeDirectoryUp: failed");
                 result = whatException(t);
             }
-            sendReply(msg.what, result);
+            reply(msg, result);
         }
 
         private void list(Message msg) {
             String fileSpec = getMessageString(msg, KEY_FILESPEC);
+            boolean forceRefresh = msg.arg1 != 0;
             Bundle data = new Bundle();
             int result = EXCEPTION_OK;
             try {
-                FTPFile[] files;
-                if (fileSpec == null) {
-                    files = mClient.list();
-                } else {
-                    files = mClient.list(fileSpec);
-                }
-                FTPFiles parcelable = new FTPFiles(files);
-                data.putParcelable(KEY_FILES, parcelable);
+                data.putParcelable(KEY_FILES, list(fileSpec, forceRefresh));
             } catch (Throwable t) {
                 Log.e(TAG, "list: failed");
                 result = whatException(t);
             }
-            sendReply(msg.what, result, data);
+            reply(msg, result, data);
         }
 
         private void listNames(Message msg) {
             Bundle data = new Bundle();
             int result = EXCEPTION_OK;
             try {
-                String[] names = mClient.listNames();
-                data.putStringArray(KEY_NAMES, names);
+                data.putStringArray(KEY_NAMES, listNames());
             } catch (Throwable t) {
                 Log.e(TAG, "listNames: failed");
                 result = whatException(t);
             }
-            sendReply(msg.what, result, data);
+            reply(msg, result, data);
+        }
+
+        private void batch(Message msg) {
+            Bundle data = msg.getData();
+            data.setClassLoader(FTPService.class.getClassLoader());
+            Parcelable[] commands = data.getParcelableArray(KEY_BATCH);
+            BatchReplies replies = new BatchReplies();
+            int result = EXCEPTION_OK;
+            if (commands != null) {
+                for (Parcelable parcelable : commands) {
+                    Bundle command = (Bundle) parcelable;
+                    Message batchMsg = Message.obtain();
+                    batchMsg.what = command.getInt(KEY_WHAT);
+                    batchMsg.arg1 = command.getInt(KEY_ARG1);
+                    batchMsg.arg2 = command.getInt(KEY_ARG2);
+                    batchMsg.setData(command);
+                    batchMsg.obj = replies;
+                    int count = replies.size();
+                    if (result != EXCEPTION_OK) {
+                        // Skip commands following a failed command
+                        replies.add(batchMsg.what, result, 0, null);
+                    } else if (batchMsg.what == WHAT_START || batchMsg.what == WHAT_STOP || batchMsg.what == WHAT_BATCH || batchMsg.what >= WHAT_COMMAND_MAX) {
+                        Log.w(TAG, "batch: unsupported command: " + batchMsg.what);
+                        result = EXCEPTION_ILLEGAL_STATE;
+                        replies.add(batchMsg.what, result, 0, null);
+                    } else {
+                        handleMessage(batchMsg);
+                        result = replies.getResult(count);
+                    }
+                    batchMsg.recycle();
+                }
+            }
+            Bundle replyData = new Bundle();
+            replyData.putParcelableArray(KEY_BATCH, replies.toArray());
+            sendReply(msg.what, result, 0, replyData);
+        }
+
+        private void listPaged(final Message msg) {
+            String fileSpec = getMessageString(msg, KEY_FILESPEC);
+            int pageSize = msg.arg1 > 0 ? msg.arg1 : FTPListPager.DEFAULT_PAGE_SIZE;
+            boolean forceRefresh = msg.arg2 != 0;
+            String key = cacheKey(fileSpec != null ? fileSpec : ".");
+            FTPFiles cached = forceRefresh ? null : mListCache.get(key);
+            if (cached != null) {
+                int size = cached.size();
+                int from = 0;
+                do {
+                    int to = Math.min(size, from + pageSize);
+                    sendPage(msg, cached.slice(from, to), to == size);
+                    from = to;
+                } while (from < size);
+                return;
+            }
+
+            // Pages are kept to cache the whole listing once it has been received
+            final ArrayList<FTPFiles> pages = new ArrayList<>();
+            FTPListPager pager = new FTPListPager(pageSize, new FTPListPager.PageHandler() {
+                @Override
+                public void page(FTPFiles files, boolean last) {
+                    pages.add(files);
+                    sendPage(msg, files, last);
+                }
+            });
+            try {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    listChannel(false).list(fileSpec, pager);
+                } catch (IOException e) {
+                    if (pager.getCount() > 0) {
+                        throw e;
+                    }
+                    // Idle connection may have been dropped by server, retry once
+                    Log.w(TAG, "listPaged: retrying: " + e.getMessage());
+                    pager.reset();
+                    pages.clear();
+                    listChannel(true).list(fileSpec, pager);
+                }
+                mMetrics.record(FTPMetrics.METRIC_LIST, SystemClock.elapsedRealtime() - start);
+                pager.finish();
+                mListCache.put(key, FTPFiles.concat(pages));
+            } catch (Throwable t) {
+                Log.e(TAG, "listPaged: failed");
+                reply(msg, whatException(t), 1, null);
+            }
+        }
+
+        private void sendPage(Message msg, FTPFiles files, boolean last) {
+            Bundle data = new Bundle();
+            data.putParcelable(KEY_FILES, files);
+            reply(msg, EXCEPTION_OK, last ? 1 : 0, data);
+        }
+
+        private FTPChannel listChannel(boolean reconnect) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+            if (mLogin == null) {
+                throw new IllegalStateException("Client not authenticated");
+            }
+            if (reconnect || mListChannel == null || mListChannel.getLogin() != mLogin || !mListChannel.isConnected()) {
+                closeListChannel();
+                mListChannel = new FTPChannel(mLogin);
+                mListChannel.open();
+            }
+            mListChannel.changeDirectory(workingDirectory());
+            return mListChannel;
+        }
+
+        private void closeListChannel() {
+            if (mListChannel != null) {
+                mListChannel.close();
+            }
+            mListChannel = null;
         }
 
         private void download(Message msg) {
+            if (msg.obj instanceof FTPRingBuffer || msg.obj instanceof ParcelFileDescriptor) {
+                downloadStream(msg);
+                return;
+            }
             final String remoteFileName = getMessageString(msg, KEY_REMOTE_FILE_NAME);
             final String localFileName = getMessageString(msg, KEY_LOCAL_FILE_NAME);
-            final int restartAt = msg.arg1;
-            if (remoteFileName == null || localFileName == null || restartAt < 0) {
-                sendReply(msg.what, EXCEPTION_FILE_NOT_FOUND);
+            long restartAt = msg.getData().getLong(KEY_RESTART_AT, -1);
+            int priority = msg.getData().getInt(KEY_PRIORITY, PRIORITY_NORMAL);
+            final int segments = msg.arg2;
+            if (remoteFileName == null || localFileName == null || restartAt < -1) {
+                reply(msg, EXCEPTION_FILE_NOT_FOUND);
+                return;
+            }
+            if (mLogin == null) {
+                reply(msg, EXCEPTION_ILLEGAL_STATE);
                 return;
             }
             final File localFile = new File(localFileName);
-            if (mDownloadHandler != null) {
-                mDownloadQueue.add(new DownloadElement(remoteFileName, localFile, restartAt));
-                if (mMessageCallback != null) {
-                    mMessageCallback.sendReply(WHAT_DOWNLOAD_QUEUE, EXCEPTION_OK, mDownloadQueue.size());
+            String remoteDirectory;
+            try {
+                remoteDirectory = workingDirectory();
+            } catch (Throwable t) {
+                Log.e(TAG, "download: failed to get working directory");
+                reply(msg, whatException(t));
+                return;
+            }
+            if (mScheduler == null) {
+                return;
+            }
+            // Unchanged file downloaded before, served from download cache without network access
+            long cachedSize = cachedSize(remoteFileName);
+            long modified = cachedModified(remoteFileName);
+            String contentKey = FTPDownloadCache.key(mLogin, remoteDirectory, remoteFileName, cachedSize, modified);
+            if (mDownloadCache.get(contentKey, cachedSize, modified, localFile)) {
+                FTPDownloadJournal.Entry stale = mJournal.find(mLogin, remoteDirectory, remoteFileName, localFile);
+                if (stale != null) {
+                    mJournal.remove(stale);
                 }
-                mDownloadHandler.post(mDownloadRunner);
+                sendReply(WHAT_DOWNLOAD_STARTED);
+                sendReply(WHAT_DOWNLOAD_COMPLETED);
+                reply(msg, EXCEPTION_OK);
+                return;
+            }
+            // Resume interrupted download unless caller gave an offset
+            FTPDownloadJournal.Entry entry = mJournal.find(mLogin, remoteDirectory, remoteFileName, localFile);
+            if (restartAt < 0) {
+                restartAt = entry != null ? entry.verifiedOffset() : 0;
             }
+            if (entry != null && (restartAt != entry.verifiedOffset() || segments > 1)) {
+                mJournal.remove(entry);
+                entry = null;
+            }
+            // Queued downloads are journaled until done, and restored on next login to the server
+            long size = entry != null ? entry.size : cachedSize;
+            if (entry == null) {
+                entry = mJournal.add(mLogin, remoteDirectory, remoteFileName, localFile, size, restartAt);
+            }
+            DownloadElement element = new DownloadElement(this, mLogin, remoteDirectory, remoteFileName, localFile, restartAt, size, modified, entry, priority, restartAt == 0 ? segments : 1);
+            sendReply(WHAT_DOWNLOAD_QUEUE, EXCEPTION_OK, submitDownload(element, msg.replyTo));
+        }
+
+        private void downloadStream(Message msg) {
+            String remoteFileName = getMessageString(msg, KEY_REMOTE_FILE_NAME);
+            StreamRunner runner = null;
+            int result = EXCEPTION_OK;
+            if (remoteFileName == null) {
+                result = EXCEPTION_FILE_NOT_FOUND;
+            } else if (mScheduler == null) {
+                result = EXCEPTION_ILLEGAL_STATE;
+            } else {
+                try {
+                    runner = new StreamRunner(this, mLogin, workingDirectory(), remoteFileName, cachedSize(remoteFileName), msg.obj);
+                } catch (Throwable t) {
+                    Log.e(TAG, "downloadStream: failed to get working directory");
+                    result = whatException(t);
+                }
+            }
+            if (runner == null) {
+                if (msg.obj instanceof FTPRingBuffer) {
+                    ((FTPRingBuffer) msg.obj).fail("Download failed: " + result);
+                } else {
+                    close((ParcelFileDescriptor) msg.obj);
+                }
+                reply(msg, result);
+                return;
+            }
+            int size = mScheduler.submit(runner);
+            sendReply(WHAT_DOWNLOAD_QUEUE, EXCEPTION_OK, size);
+        }
+
+        private void upload(Message msg) {
+            String remoteFileName = getMessageString(msg, KEY_REMOTE_FILE_NAME);
+            String localFileName = getMessageString(msg, KEY_LOCAL_FILE_NAME);
+            InputStream stream = msg.obj instanceof InputStream ? (InputStream) msg.obj : null;
+            boolean resume = msg.arg1 != 0;
+            if (remoteFileName == null || (localFileName == null && stream == null)) {
+                close(stream);
+                reply(msg, EXCEPTION_FILE_NOT_FOUND);
+                return;
+            }
+            String remoteDirectory;
+            try {
+                remoteDirectory = workingDirectory();
+            } catch (Throwable t) {
+                Log.e(TAG, "upload: failed to get working directory");
+                close(stream);
+                reply(msg, whatException(t));
+                return;
+            }
+            if (mScheduler != null) {
+                File localFile = localFileName != null ? new File(localFileName) : null;
+                UploadElement element = new UploadElement(this, mLogin, remoteDirectory, remoteFileName, localFile, stream, resume);
+                int size = mScheduler.submit(new UploadRunner(element));
+                sendReply(WHAT_UPLOAD_QUEUE, EXCEPTION_OK, size);
+            } else {
+                close(stream);
+            }
+        }
+
+        private void mirror(Message msg) {
+            String remotePath = getMessageString(msg, KEY_PATH);
+            String localDirName = getMessageString(msg, KEY_LOCAL_FILE_NAME);
+            if (remotePath == null || localDirName == null) {
+                reply(msg, EXCEPTION_FILE_NOT_FOUND);
+                return;
+            }
+            if (mLogin == null || mScheduler == null) {
+                reply(msg, EXCEPTION_ILLEGAL_STATE);
+                return;
+            }
+            String remoteDirectory;
+            try {
+                remoteDirectory = resolvePath(workingDirectory(), remotePath);
+            } catch (Throwable t) {
+                Log.e(TAG, "mirror: failed to get working directory");
+                reply(msg, whatException(t));
+                return;
+            }
+            File localDir = new File(localDirName);
+            FTPTransferListener listener = new FTPTransferListener(this, 0, 0);
+            FTPMirror mirror;
+            if (msg.arg1 != 0) {
+                File manifestFile = new File(new File(getFilesDir(), SYNC_DIRECTORY), FTPSync.manifestName(mLogin, remoteDirectory, localDir));
+                mirror = new FTPSync(mPool, mScheduler, mListCache, mLogin, remoteDirectory, localDir, mMirrorListWorkers, mMirrorQueue, listener, new MirrorCallback(this), manifestFile);
+            } else {
+                mirror = new FTPMirror(mPool, mScheduler, mListCache, mLogin, remoteDirectory, localDir, mMirrorListWorkers, mMirrorQueue, listener, new MirrorCallback(this));
+            }
+            synchronized (mMirrors) {
+                mMirrors.add(mirror);
+            }
+            mirror.start();
         }
 
         private void abortCurrentDataTransfer(Message msg) {
             int result = EXCEPTION_OK;
+            // Cancelling may complete a mirror, which removes it from the list
+            List<FTPMirror> mirrors;
+            synchronized (mMirrors) {
+                mirrors = new ArrayList<>(mMirrors);
+            }
+            for (FTPMirror mirror : mirrors) {
+                mirror.cancel();
+            }
             try {
-                mClient.abortCurrentDataTransfer(true);
+                mPool.abort();
             } catch (Throwable t) {
                 Log.e(TAG, "abortCurrentDataTransfer: failed");
                 result = whatException(t);
             }
-            sendReply(msg.what, result);
+            reply(msg, result);
+        }
+
+        // Open warm sessions to known servers in the background
+        private void profiles(Message msg) {
+            if (msg.obj instanceof FTPServerProfile[]) {
+                mPreconnect.start((FTPServerProfile[]) msg.obj);
+            }
+        }
+
+        private void setOption(Message msg) {
+            int option = msg.arg1;
+            int value = msg.arg2;
+            switch (option) {
+                case OPTION_MAX_CONNECTIONS:
+                    mPool.setMaxConnections(value);
+                    if (mScheduler != null) {
+                        mScheduler.setMaxPerHost(mPool.getMaxConnections());
+                    }
+                    break;
+                case OPTION_DOWNLOAD_WORKERS:
+                    if (mScheduler != null) {
+                        mScheduler.setWorkerCount(value);
+                        mExecutor.setThreadCount(FTPExecutor.COMMAND_THREADS + mScheduler.getWorkerCount());
+                    }
+                    break;
+                case OPTION_LIST_CACHE_TTL:
+                    mListCache.setTtl(value);
+                    break;
+                case OPTION_LIST_CACHE_ENTRIES:
+                    mListCache.setMaxEntries(value);
+                    break;
+                case OPTION_LIST_CACHE_BYTES:
+                    mListCache.setMaxBytes(value);
+                    break;
+                case OPTION_PROGRESS_INTERVAL:
+                    mProgressInterval = Math.max(0, value);
+                    break;
+                case OPTION_PROGRESS_BYTES:
+                    mProgressBytes = Math.max(0, value);
+                    break;
+                case OPTION_MIRROR_LIST_WORKERS:
+                    mMirrorListWorkers = Math.max(1, value);
+                    break;
+                case OPTION_MIRROR_QUEUE:
+                    mMirrorQueue = Math.max(1, value);
+                    break;
+                case OPTION_DOWNLOAD_CACHE_BYTES:
+                    mDownloadCache.setMaxBytes(value);
+                    break;
+                case OPTION_KEEP_ALIVE_INTERVAL:
+                    mKeepAliveInterval = Math.max(0, value);
+                    break;
+                case OPTION_DNS_CACHE_TTL:
+                    FTPDnsCache.setTtl(value);
+                    break;
+                case OPTION_CHANNEL_DOWNLOADS:
+                    mChannelDownloads = value != 0;
+                    break;
+                case OPTION_RECEIVE_BUFFER:
+                    mReceiveBufferSize = Math.max(0, value);
+                    break;
+                default:
+                    Log.w(TAG, "setOption: unknown option: " + option);
+                    break;
+            }
+        }
+
+        private void invalidateCache(Message msg) {
+            String path = getMessageString(msg, KEY_PATH);
+            if (path == null) {
+                mListCache.clear();
+                return;
+            }
+            boolean recursive = msg.arg1 != 0;
+            String key = cacheKey(path);
+            if (key != null) {
+                mListCache.invalidate(key, recursive);
+            } else {
+                mListCache.clear();
+            }
+        }
+
+        private String cacheKey(String path) {
+            if (mLogin == null) {
+                return null;
+            }
+            try {
+                return FTPListCache.key(mLogin, resolvePath(workingDirectory(), path));
+            } catch (Throwable t) {
+                Log.w(TAG, "cacheKey: failed to resolve: " + path);
+                return null;
+            }
+        }
+
+        private long cachedSize(String remoteFileName) {
+            FTPFiles files = mListCache.get(cacheKey("."));
+            int index = files != null ? files.indexOf(remoteFileName) : -1;
+            return index >= 0 ? files.sizeAt(index) : -1;
+        }
+
+        private long cachedModified(String remoteFileName) {
+            FTPFiles files = mListCache.get(cacheKey("."));
+            int index = files != null ? files.indexOf(remoteFileName) : -1;
+            return index >= 0 ? files.modifiedMillisAt(index) : 0;
+        }
+
+        private void closeSession() {
+            closeListChannel();
+            mPool.close(mLogin);
+            mLogin = null;
+            mWorkingDirectory = null;
+        }
+
+        private String workingDirectory() throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+            if (mWorkingDirectory == null) {
+                long start = SystemClock.elapsedRealtime();
+                mWorkingDirectory = mClient.currentDirectory();
+                mMetrics.record(FTPMetrics.METRIC_PWD, SystemClock.elapsedRealtime() - start);
+            }
+            return mWorkingDirectory;
+        }
+    }
+
+    private static String resolvePath(String directory, String path) {
+        if (!path.startsWith("/")) {
+            if (directory == null) {
+                return null;
+            }
+            path = directory + "/" + path;
+        }
+        ArrayList<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                if (!segments.isEmpty()) {
+                    segments.remove(segments.size() - 1);
+                }
+            } else {
+                segments.add(segment);
+            }
+        }
+        StringBuilder resolved = new StringBuilder();
+        for (String segment : segments) {
+            resolved.append('/').append(segment);
+        }
+        return resolved.length() > 0 ? resolved.toString() : "/";
+    }
+
+    private final static class BatchReplies {
+        private final ArrayList<Bundle> mReplies = new ArrayList<>();
+
+        void add(int what, int arg1, int arg2, Bundle data) {
+            Bundle reply = new Bundle();
+            reply.putInt(KEY_WHAT, what);
+            reply.putInt(KEY_ARG1, arg1);
+            reply.putInt(KEY_ARG2, arg2);
+            if (data != null) {
+                reply.putBundle(KEY_DATA, data);
+            }
+            mReplies.add(reply);
+        }
+
+        int size() {
+            return mReplies.size();
+        }
+
+        Bundle get(int index) {
+            return mReplies.get(index);
+        }
+
+        // First failure among replies from index, or EXCEPTION_OK
+        int getResult(int from) {
+            for (int i = from; i < mReplies.size(); i++) {
+                int result = mReplies.get(i).getInt(KEY_ARG1);
+                if (result != EXCEPTION_OK) {
+                    return result;
+                }
+            }
+            return EXCEPTION_OK;
+        }
+
+        Bundle[] toArray() {
+            return mReplies.toArray(new Bundle[0]);
+        }
+    }
+
+    private final class MirrorCallback implements FTPMirror.Callback {
+        // Session the mirror was started in
+        private final MessageCallback mSession;
+
+        MirrorCallback(MessageCallback session) {
+            mSession = session;
+        }
+
+        @Override
+        public void done(FTPMirror mirror, int result, int files, int failures) {
+            synchronized (mMirrors) {
+                mMirrors.remove(mirror);
+            }
+            if (mScheduler != null) {
+                mSession.sendReply(WHAT_MIRROR, result, files);
+            }
         }
     }
 
-    private class FTPTransferListener implements FTPDataTransferListener {
+    private class FTPTransferListener extends FTPProgressListener {
+        // Session the transfer was started in, sent its updates
+        private final MessageCallback mSession;
+        private final long mOffset;
+        private final boolean mUpload;
+        private long mBeginTime;
+        private long mFirstByteTime;
+
+        FTPTransferListener(MessageCallback session, long offset, long total) {
+            this(session, offset, total, false);
+        }
+
+        /**
+         * @param upload  <code>true</code> to report upload updates, which are not included in
+         *                the transfer metrics
+         */
+        FTPTransferListener(MessageCallback session, long offset, long total, boolean upload) {
+            super(offset, total, mProgressInterval, mProgressBytes);
+            mSession = session;
+            mOffset = offset;
+            mUpload = upload;
+            mBeginTime = SystemClock.elapsedRealtime();
+        }
+
+        private void sendUpdate(int what, int arg2, Bundle data) {
+            if (mScheduler != null) {
+                int update = mUpload ? what - WHAT_DOWNLOAD_STARTED + WHAT_UPLOAD_STARTED : what;
+                mSession.sendReply(update, EXCEPTION_OK, arg2, data);
+            }
+        }
+
+        /**
+         * Mark start of transfer request, for latency metrics
+         */
+        synchronized void begin() {
+            mBeginTime = SystemClock.elapsedRealtime();
+        }
+
         @Override
         public void started() {
-            Message msg = Message.obtain();
-            msg.what = WHAT_DOWNLOAD_STARTED;
-            if (mMessageCallback != null) {
-                mMessageCallback.sendReply(msg.what);
+            if (!mUpload) {
+                mMetrics.record(FTPMetrics.METRIC_RETR, SystemClock.elapsedRealtime() - mBeginTime);
             }
+            sendUpdate(WHAT_DOWNLOAD_STARTED, 0, null);
         }
 
         @Override
-        public void transferred(int length) {
-            Message msg = Message.obtain();
-            msg.what = WHAT_DOWNLOAD_TRANSFERRED;
-            if (mMessageCallback != null) {
-                mMessageCallback.sendReply(msg.what, EXCEPTION_OK, length);
+        public synchronized void transferred(int length) {
+            if (mFirstByteTime == 0) {
+                mFirstByteTime = SystemClock.elapsedRealtime();
+                if (!mUpload) {
+                    mMetrics.record(FTPMetrics.METRIC_FIRST_BYTE, mFirstByteTime - mBeginTime);
+                }
             }
+            super.transferred(length);
+        }
+
+        @Override
+        void progress(int length, long transferred, long total, long rate) {
+            Bundle data = new Bundle();
+            data.putLong(KEY_TRANSFERRED, transferred);
+            data.putLong(KEY_TOTAL, total);
+            data.putLong(KEY_RATE, rate);
+            sendUpdate(WHAT_DOWNLOAD_TRANSFERRED, length, data);
         }
 
         @Override
         public void completed() {
-            Message msg = Message.obtain();
-            msg.what = WHAT_DOWNLOAD_COMPLETED;
-            if (mMessageCallback != null) {
-                mMessageCallback.sendReply(msg.what);
+            flush();
+            if (!mUpload) {
+                long firstByteTime = mFirstByteTime > 0 ? mFirstByteTime : mBeginTime;
+                mMetrics.transfer(getTransferred() - mOffset, SystemClock.elapsedRealtime() - firstByteTime);
             }
+            sendUpdate(WHAT_DOWNLOAD_COMPLETED, 0, null);
         }
 
         @Override
         public void aborted() {
-            Message msg = Message.obtain();
-            msg.what = WHAT_DOWNLOAD_ABORTED;
-            if (mMessageCallback != null) {
-                mMessageCallback.sendReply(msg.what);
+            flush();
+            if (!mUpload) {
+                mMetrics.failure(getTransferred() - mOffset);
             }
+            sendUpdate(WHAT_DOWNLOAD_ABORTED, 0, null);
         }
 
         @Override
         public void failed() {
-            Message msg = Message.obtain();
-            msg.what = WHAT_DOWNLOAD_FAILED;
-            if (mMessageCallback != null) {
-                mMessageCallback.sendReply(msg.what);
+            flush();
+            if (!mUpload) {
+                mMetrics.failure(getTransferred() - mOffset);
             }
+            sendUpdate(WHAT_DOWNLOAD_FAILED, 0, null);
         }
     }
 
-    private static int whatException(Throwable t) {
+    static int whatException(Throwable t) {
         int result = EXCEPTION_UNKNOWN;
         if (t instanceof IllegalStateException) {
             Log.w(TAG, "IllegalStateException: " + t.getMessage());
@@ -0,0 +1,369 @@
+package com.omicronapplications.ftplib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+
+/**
+ * Pool of logged-in FTP connections, kept per host and user. Each connection has its own login and
+ * working directory, so that transfers do not share the control connection used for browsing.
+ * Connections are either ftp4j clients or raw channels, both counting towards the host limit.
+ */
+class FTPSessionPool {
+    private static final String TAG = "FTPSessionPool";
+    static final int DEFAULT_MAX_CONNECTIONS = 2;
+    private final Map<String, HostPool> mPools = new HashMap<>();
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    /**
+     * Login parameters of an FTP session
+     */
+    static final class Login {
+        final String host;
+        final int port;
+        final String username;
+        final String password;
+
+        Login(String host, int port, String username, String password) {
+            this.host = host;
+            this.port = port;
+            this.username = username;
+            this.password = password;
+        }
+
+        String key() {
+            return username + "@" + host + ":" + port;
+        }
+    }
+
+    /**
+     * Pooled connection
+     */
+    static final class Connection {
+        final FTPClient client = new FTPClient();
+        // Raw channel, or null for ftp4j client connections
+        final FTPChannel channel;
+        final Login login;
+        private String mWorkingDirectory;
+
+        private Connection(Login login, boolean channel) {
+            this.login = login;
+            this.channel = channel ? new FTPChannel(login) : null;
+        }
+
+        boolean isConnected() {
+            return channel != null ? channel.isConnected() : client.isConnected();
+        }
+
+        void changeDirectory(String path) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+            if (channel != null) {
+                channel.changeDirectory(path);
+                return;
+            }
+            if (path == null || path.equals(mWorkingDirectory)) {
+                return;
+            }
+            mWorkingDirectory = null;
+            client.changeDirectory(path);
+            mWorkingDirectory = path;
+        }
+    }
+
+    private static final class HostPool {
+        final List<Connection> idle = new ArrayList<>();
+        final List<Connection> busy = new ArrayList<>();
+        int opening = 0;
+        // Sessions logged in to the host, pool is kept while any remain or connections are in use
+        int sessions = 0;
+
+        int size() {
+            return idle.size() + busy.size() + opening;
+        }
+
+        boolean isUnused() {
+            return sessions == 0 && busy.isEmpty() && opening == 0;
+        }
+
+        // Most recently released idle connection of kind, or -1
+        int indexOfIdle(boolean channel) {
+            for (int i = idle.size() - 1; i >= 0; i--) {
+                if ((idle.get(i).channel != null) == channel) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = Math.max(1, maxConnections);
+        notifyAll();
+    }
+
+    synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Acquire a logged-in connection, waiting while all connections for the host are in use
+     *
+     * @param login     Login parameters
+     * @param directory Absolute working directory, or <code>null</code> to leave unchanged
+     * @return          Connection, to be returned with release() or discard()
+     */
+    Connection acquire(Login login, String directory) throws InterruptedException, IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        return acquire(login, directory, false);
+    }
+
+    /**
+     * Acquire a logged-in connection, waiting while all connections for the host are in use
+     *
+     * @param login     Login parameters
+     * @param directory Absolute working directory, or <code>null</code> to leave unchanged
+     * @param channel   <code>true</code> for a raw channel connection
+     * @return          Connection, to be returned with release() or discard()
+     */
+    Connection acquire(Login login, String directory, boolean channel) throws InterruptedException, IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        if (login == null) {
+            throw new IllegalStateException("Client not authenticated");
+        }
+        Connection connection = null;
+        List<Connection> surplus = new ArrayList<>();
+        String key = login.key();
+        synchronized (this) {
+            HostPool pool = getPool(key);
+            int index;
+            while ((index = pool.indexOfIdle(channel)) < 0 && pool.size() >= mMaxConnections) {
+                if (!pool.idle.isEmpty()) {
+                    // Make room for a connection of the other kind, closed below outside the lock
+                    surplus.add(pool.idle.remove(pool.idle.size() - 1));
+                    continue;
+                }
+                wait();
+                pool = getPool(key);
+            }
+            if (index >= 0) {
+                connection = pool.idle.remove(index);
+                pool.busy.add(connection);
+            } else {
+                pool.opening++;
+            }
+        }
+        for (Connection idle : surplus) {
+            close(idle);
+        }
+
+        if (connection == null) {
+            connection = new Connection(login, channel);
+            try {
+                open(connection);
+            } catch (Throwable t) {
+                List<Connection> unused;
+                synchronized (this) {
+                    HostPool pool = getPool(key);
+                    pool.opening--;
+                    unused = removeUnused(key, pool);
+                    notifyAll();
+                }
+                close(unused);
+                throw t;
+            }
+            synchronized (this) {
+                HostPool pool = getPool(key);
+                pool.opening--;
+                pool.busy.add(connection);
+            }
+        }
+
+        try {
+            connection.changeDirectory(directory);
+        } catch (Throwable t) {
+            discard(connection);
+            throw t;
+        }
+        return connection;
+    }
+
+    /**
+     * Return a connection to the pool for reuse
+     *
+     * @param connection  Connection acquired with acquire()
+     */
+    void release(Connection connection) {
+        List<Connection> unused = new ArrayList<>();
+        synchronized (this) {
+            String key = connection.login.key();
+            HostPool pool = mPools.get(key);
+            if (pool != null && pool.busy.remove(connection)) {
+                if (connection.isConnected() && pool.size() < mMaxConnections) {
+                    pool.idle.add(connection);
+                    connection = null;
+                }
+                unused = removeUnused(key, pool);
+                notifyAll();
+            }
+        }
+        if (connection != null) {
+            close(connection);
+        }
+        close(unused);
+    }
+
+    /**
+     * Close a connection that is no longer in a usable state
+     *
+     * @param connection  Connection acquired with acquire()
+     */
+    void discard(Connection connection) {
+        List<Connection> unused = new ArrayList<>();
+        synchronized (this) {
+            String key = connection.login.key();
+            HostPool pool = mPools.get(key);
+            if (pool != null) {
+                pool.busy.remove(connection);
+                unused = removeUnused(key, pool);
+                notifyAll();
+            }
+        }
+        close(connection);
+        close(unused);
+    }
+
+    /**
+     * Abort data transfers on all connections in use
+     */
+    void abort() {
+        List<Connection> busy = new ArrayList<>();
+        synchronized (this) {
+            for (HostPool pool : mPools.values()) {
+                busy.addAll(pool.busy);
+            }
+        }
+        for (Connection connection : busy) {
+            if (connection.channel != null) {
+                connection.channel.abort();
+                continue;
+            }
+            try {
+                connection.client.abortCurrentDataTransfer(true);
+            } catch (Throwable t) {
+                Log.w(TAG, "abort: failed: " + t.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keep idle connections for a host while a session is logged in to it
+     *
+     * @param login  Login parameters of the session
+     */
+    synchronized void retain(Login login) {
+        if (login != null) {
+            getPool(login.key()).sessions++;
+        }
+    }
+
+    /**
+     * End a session retained with retain(), idle connections for the host are closed once no
+     * session or transfer uses them
+     *
+     * @param login  Login parameters of the session
+     */
+    void close(Login login) {
+        if (login == null) {
+            return;
+        }
+        List<Connection> unused;
+        synchronized (this) {
+            String key = login.key();
+            HostPool pool = mPools.get(key);
+            if (pool == null || pool.sessions == 0) {
+                return;
+            }
+            pool.sessions--;
+            unused = removeUnused(key, pool);
+        }
+        close(unused);
+    }
+
+    /**
+     * Close all idle connections
+     */
+    void closeAll() {
+        List<Connection> idle = new ArrayList<>();
+        synchronized (this) {
+            Iterator<HostPool> it = mPools.values().iterator();
+            while (it.hasNext()) {
+                idle.addAll(it.next().idle);
+                it.remove();
+            }
+            notifyAll();
+        }
+        for (Connection connection : idle) {
+            close(connection);
+        }
+    }
+
+    // Drop pool once no session or transfer uses it, kept until then to enforce the host limit
+    private List<Connection> removeUnused(String key, HostPool pool) {
+        if (!pool.isUnused() || mPools.get(key) != pool) {
+            return new ArrayList<>();
+        }
+        mPools.remove(key);
+        return pool.idle;
+    }
+
+    private HostPool getPool(String key) {
+        HostPool pool = mPools.get(key);
+        if (pool == null) {
+            pool = new HostPool();
+            mPools.put(key, pool);
+        }
+        return pool;
+    }
+
+    private static void open(Connection connection) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        Login login = connection.login;
+        if (connection.channel != null) {
+            connection.channel.open();
+            return;
+        }
+        FTPDnsCache.connect(connection.client, login.host, login.port);
+        try {
+            connection.client.login(login.username, login.password);
+        } catch (Throwable t) {
+            close(connection);
+            throw t;
+        }
+    }
+
+    private static void close(List<Connection> connections) {
+        for (Connection connection : connections) {
+            close(connection);
+        }
+    }
+
+    private static void close(Connection connection) {
+        if (connection.channel != null) {
+            connection.channel.close();
+            return;
+        }
+        if (!connection.client.isConnected()) {
+            return;
+        }
+        try {
+            connection.client.disconnect(false);
+        } catch (Throwable t) {
+            Log.w(TAG, "close: failed to disconnect: " + t.getMessage());
+        }
+    }
+}
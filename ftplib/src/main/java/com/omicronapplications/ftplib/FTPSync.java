@@ -0,0 +1,206 @@
+package com.omicronapplications.ftplib;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+
+/**
+ * Incremental mirror, only downloading files that are new or have changed since the previous
+ * sync. Remote size and modification date are taken from the directory listing, falling back to
+ * SIZE and MDTM when the listing lacks them, and compared against the local file and a manifest
+ * of the files downloaded by the previous sync.
+ */
+class FTPSync extends FTPMirror {
+    private static final String TAG = "FTPSync";
+    private static final int MANIFEST_MAGIC = 0x46545053; // "FTPS"
+    private static final int MANIFEST_VERSION = 1;
+    private final File mManifestFile;
+    private final String mRemotePath;
+    private final String mLocalPath;
+    private final HashMap<String, Record> mPrevious = new HashMap<>();
+    private final HashMap<String, Record> mCurrent = new HashMap<>();
+
+    private static final class Record {
+        final long size;
+        final long remoteModified;
+        final long localModified;
+
+        Record(long size, long remoteModified, long localModified) {
+            this.size = size;
+            this.remoteModified = remoteModified;
+            this.localModified = localModified;
+        }
+    }
+
+    FTPSync(FTPSessionPool pool, FTPTransferScheduler scheduler, FTPListCache listCache, FTPSessionPool.Login login, String remotePath, File localDir, int listWorkers, int downloadWindow, FTPProgressListener listener, Callback callback, File manifestFile) {
+        super(pool, scheduler, listCache, login, remotePath, localDir, listWorkers, downloadWindow, listener, callback);
+        mManifestFile = manifestFile;
+        mRemotePath = remotePath;
+        mLocalPath = localDir.getAbsolutePath();
+    }
+
+    /**
+     * Manifest file name for a remote and local directory pair
+     */
+    static String manifestName(FTPSessionPool.Login login, String remotePath, File localDir) {
+        String key = login.key() + remotePath + "\n" + localDir.getAbsolutePath();
+        return "sync-" + Integer.toHexString(key.hashCode());
+    }
+
+    @Override
+    void start() {
+        load();
+        super.start();
+    }
+
+    @Override
+    boolean accept(FTPSessionPool.Connection connection, Entry entry) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        File local = entry.localFile;
+        if (!local.isFile()) {
+            return true;
+        }
+        String path = path(entry);
+        Record record;
+        synchronized (this) {
+            record = mPrevious.get(path);
+        }
+        try {
+            if (entry.size < 0) {
+                entry.size = connection.client.fileSize(entry.name);
+            }
+            if (entry.modified <= 0) {
+                entry.modified = connection.client.modifiedDate(entry.name).getTime();
+            }
+        } catch (FTPException e) {
+            // SIZE or MDTM not supported, download to be safe
+            Log.w(TAG, "accept: FTPException: " + e.toString());
+            return true;
+        }
+        long localModified = local.lastModified();
+        boolean changed;
+        if (local.length() != entry.size) {
+            changed = true;
+        } else if (record != null) {
+            changed = record.size != entry.size || record.remoteModified != entry.modified || record.localModified != localModified;
+        } else {
+            // Mirrored files get the remote modification date
+            changed = localModified != entry.modified;
+        }
+        if (!changed) {
+            synchronized (this) {
+                mCurrent.put(path, new Record(entry.size, entry.modified, localModified));
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    void downloaded(Entry entry) {
+        long size = entry.size >= 0 ? entry.size : entry.localFile.length();
+        Record record = new Record(size, entry.modified, entry.localFile.lastModified());
+        synchronized (this) {
+            mCurrent.put(path(entry), record);
+        }
+    }
+
+    @Override
+    void finished(int result) {
+        save();
+    }
+
+    private static String path(Entry entry) {
+        return entry.remoteDirectory + "/" + entry.name;
+    }
+
+    private void load() {
+        if (!mManifestFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mManifestFile)));
+            if (in.readInt() != MANIFEST_MAGIC || in.readInt() != MANIFEST_VERSION) {
+                Log.w(TAG, "load: unsupported manifest: " + mManifestFile);
+                return;
+            }
+            if (!mRemotePath.equals(in.readUTF()) || !mLocalPath.equals(in.readUTF())) {
+                Log.w(TAG, "load: manifest mismatch: " + mManifestFile);
+                return;
+            }
+            int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    mPrevious.put(path, new Record(in.readLong(), in.readLong(), in.readLong()));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "load: IOException: " + e.getMessage());
+            synchronized (this) {
+                mPrevious.clear();
+            }
+        } finally {
+            close(in);
+        }
+    }
+
+    // Written to temporary file and renamed, so an interrupted save keeps the previous manifest
+    private void save() {
+        File parent = mManifestFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            Log.w(TAG, "save: failed to create directory: " + parent);
+            return;
+        }
+        File temp = new File(mManifestFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(MANIFEST_VERSION);
+            out.writeUTF(mRemotePath);
+            out.writeUTF(mLocalPath);
+            synchronized (this) {
+                out.writeInt(mCurrent.size());
+                for (Map.Entry<String, Record> entry : mCurrent.entrySet()) {
+                    Record record = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(record.size);
+                    out.writeLong(record.remoteModified);
+                    out.writeLong(record.localModified);
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mManifestFile)) {
+                Log.w(TAG, "save: failed to rename: " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "save: IOException: " + e.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
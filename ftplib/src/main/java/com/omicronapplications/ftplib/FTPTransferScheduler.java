@@ -0,0 +1,206 @@
+package com.omicronapplications.ftplib;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs queued transfers on a shared executor, limiting the number of concurrent transfers to a
+ * configurable worker count, and the number of concurrent transfers per host. Tasks are run in
+ * order of priority, then in order of submission. Tasks for a host at its limit are skipped over,
+ * so that transfers to other hosts are not held up behind them.
+ */
+class FTPTransferScheduler {
+    private static final String TAG = "FTPTransferScheduler";
+    static final int DEFAULT_WORKERS = 3;
+    private final LinkedList<Task> mQueue = new LinkedList<>();
+    private final Map<String, Integer> mActive = new HashMap<>();
+    private final Executor mExecutor;
+    private int mRunning;
+    private int mWorkerCount;
+    private int mMaxPerHost;
+    private boolean mStopped;
+
+    /**
+     * Transfer task, scheduled per host
+     */
+    abstract static class Task implements Runnable {
+        final String key;
+        private int mPriority;
+
+        Task(String key) {
+            this.key = key != null ? key : "";
+        }
+
+        Task(String key, int priority) {
+            this(key);
+            mPriority = priority;
+        }
+
+        /**
+         * Called instead of run if the task is dropped from the queue, tasks holding resources or
+         * awaited by a requester release them and report the abort here
+         */
+        void cancel() {
+        }
+    }
+
+    FTPTransferScheduler(Executor executor, int workerCount, int maxPerHost) {
+        mExecutor = executor;
+        mMaxPerHost = Math.max(1, maxPerHost);
+        setWorkerCount(workerCount);
+    }
+
+    /**
+     * Queue a task for execution
+     *
+     * @param task  Transfer task
+     * @return      Number of queued tasks, including this one
+     */
+    int submit(Task task) {
+        synchronized (this) {
+            if (!mStopped) {
+                mQueue.add(task);
+                int size = mQueue.size();
+                dispatch();
+                return size;
+            }
+        }
+        Log.w(TAG, "submit: scheduler stopped");
+        cancel(task);
+        return 0;
+    }
+
+    /**
+     * Raise priority of a queued task
+     *
+     * @param task      Transfer task
+     * @param priority  New priority, ignored if lower than current priority
+     * @return          <code>true</code> if the task is queued
+     *                  <code>false</code> if it is running or done
+     */
+    synchronized boolean promote(Task task, int priority) {
+        if (!mQueue.contains(task)) {
+            return false;
+        }
+        task.mPriority = Math.max(task.mPriority, priority);
+        return true;
+    }
+
+    /**
+     * Number of queued tasks, not including tasks being run
+     */
+    synchronized int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Set maximum number of concurrent transfers, running transfers beyond it are completed
+     */
+    synchronized void setWorkerCount(int workerCount) {
+        mWorkerCount = Math.max(1, workerCount);
+        dispatch();
+    }
+
+    synchronized int getWorkerCount() {
+        return mWorkerCount;
+    }
+
+    synchronized void setMaxPerHost(int maxPerHost) {
+        mMaxPerHost = Math.max(1, maxPerHost);
+        dispatch();
+    }
+
+    /**
+     * Drop queued tasks and cancel them, running tasks are completed
+     */
+    void shutdown() {
+        List<Task> dropped;
+        synchronized (this) {
+            mStopped = true;
+            dropped = new ArrayList<>(mQueue);
+            mQueue.clear();
+        }
+        // Cancelled outside the lock, as tasks may reply to requesters or submit further tasks
+        for (Task task : dropped) {
+            cancel(task);
+        }
+    }
+
+    // Hand eligible tasks to the executor while below the worker count
+    private void dispatch() {
+        while (!mStopped && mRunning < mWorkerCount) {
+            Task next = null;
+            for (Task task : mQueue) {
+                // Queue is in submission order, so the first task of the highest priority is kept
+                if (getActive(task.key) < mMaxPerHost && (next == null || task.mPriority > next.mPriority)) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            mQueue.remove(next);
+            mActive.put(next.key, getActive(next.key) + 1);
+            mRunning++;
+            try {
+                mExecutor.execute(new Runner(next));
+            } catch (RejectedExecutionException e) {
+                // Kept queued, to be cancelled on shutdown
+                Log.w(TAG, "dispatch: executor shut down");
+                mStopped = true;
+                mQueue.addFirst(next);
+                done(next);
+            }
+        }
+    }
+
+    private synchronized void done(Task task) {
+        int active = getActive(task.key) - 1;
+        if (active > 0) {
+            mActive.put(task.key, active);
+        } else {
+            mActive.remove(task.key);
+        }
+        mRunning--;
+        dispatch();
+    }
+
+    private static void cancel(Task task) {
+        try {
+            task.cancel();
+        } catch (Throwable t) {
+            Log.e(TAG, "cancel: task failed: " + t.getMessage());
+        }
+    }
+
+    private int getActive(String key) {
+        Integer active = mActive.get(key);
+        return active != null ? active : 0;
+    }
+
+    private final class Runner implements Runnable {
+        private final Task mTask;
+
+        Runner(Task task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            } catch (Throwable t) {
+                Log.e(TAG, "run: task failed: " + t.getMessage());
+            } finally {
+                done(mTask);
+            }
+        }
+    }
+}